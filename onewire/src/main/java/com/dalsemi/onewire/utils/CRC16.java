@@ -0,0 +1,261 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dalsemi.onewire.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC16 is a class to contain an implementation of the
+ * Cyclic-Redundency-Check CRC16 for the iButton.  The CRC16 is used
+ * to verify the data of 1-Wire memory and switch devices.  These
+ * devices send the inverted CRC16 after the data, so running the CRC16
+ * over the data and the two CRC16 bytes gives 0xB001.
+ * <p>
+ * CRC16 is based on the polynomial = X^16 + X^15 + X^2 + 1.
+ * <p>
+ * Arrays and buffers are processed eight data elements at a time
+ * (slicing-by-8), with one table lookup per element and no dependency
+ * between the lookups of a block.
+ */
+public class CRC16
+{
+   //--------
+   //-------- Variables
+   //--------
+
+   /**
+    * Value of the CRC16 over data followed by its inverted CRC16.
+    */
+   public static final int VALID_RESIDUE = 0xB001;
+
+   /**
+    * Slicing-by-8 lookup tables: crc_slice [k][i] is the CRC16 of
+    * element i followed by k zero elements.
+    */
+   private static int crc_slice [][];
+
+   /*
+    * Create the lookup tables
+    */
+   static
+   {
+      crc_slice = new int [8][256];
+
+      for (int i = 0; i < 256; i++)
+      {
+         int crc = i;
+
+         // reflected polynomial 0xA001
+         for (int j = 0; j < 8; j++)
+            crc = ((crc & 0x01) != 0) ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+
+         crc_slice [0][i] = crc;
+      }
+
+      for (int k = 1; k < 8; k++)
+         for (int i = 0; i < 256; i++)
+         {
+            int crc = crc_slice [k - 1][i];
+
+            crc_slice [k][i] = (crc >>> 8) ^ crc_slice [0][crc & 0x0FF];
+         }
+   }
+
+   //--------
+   //-------- Constructor
+   //--------
+
+   /**
+    * Private constructor to prevent instantiation.
+    */
+   private CRC16 ()
+   {
+   }
+
+   //--------
+   //-------- Methods
+   //--------
+
+   /**
+    * Perform the CRC16 on the data element based on a zero seed.
+    * <p>
+    * CRC16 is based on the polynomial = X^16 + X^15 + X^2 + 1.
+    *
+    * @param   dataToCrc   data element on which to perform the CRC16
+    * @return  CRC16 value
+    */
+   public static int compute (int dataToCrc)
+   {
+      return compute(dataToCrc, 0);
+   }
+
+   /**
+    * Perform the CRC16 on the data element based on the provided seed.
+    * <p>
+    * CRC16 is based on the polynomial = X^16 + X^15 + X^2 + 1.
+    *
+    * @param   dataToCrc   data element on which to perform the CRC16
+    * @param   seed        seed the CRC16 with this value
+    * @return  CRC16 value
+    */
+   public static int compute (int dataToCrc, int seed)
+   {
+      seed &= 0x0FFFF;
+
+      return (seed >>> 8) ^ crc_slice [0][(seed ^ dataToCrc) & 0x0FF];
+   }
+
+   /**
+    * Perform the CRC16 on an array of data elements based on a
+    * zero seed.
+    * <p>
+    * CRC16 is based on the polynomial = X^16 + X^15 + X^2 + 1.
+    *
+    * @param   dataToCrc   array of data elements on which to perform the CRC16
+    * @return  CRC16 value
+    */
+   public static int compute (byte dataToCrc [])
+   {
+      return compute(dataToCrc, 0, dataToCrc.length, 0);
+   }
+
+   /**
+    * Perform the CRC16 on an array of data elements based on the
+    * provided seed.
+    * <p>
+    * CRC16 is based on the polynomial = X^16 + X^15 + X^2 + 1.
+    *
+    * @param   dataToCrc   array of data elements on which to perform the CRC16
+    * @param   seed        seed to use for CRC16
+    * @return  CRC16 value
+    */
+   public static int compute (byte dataToCrc [], int seed)
+   {
+      return compute(dataToCrc, 0, dataToCrc.length, seed);
+   }
+
+   /**
+    * Perform the CRC16 on an array of data elements based on a
+    * zero seed.
+    * <p>
+    * CRC16 is based on the polynomial = X^16 + X^15 + X^2 + 1.
+    *
+    * @param   dataToCrc   array of data elements on which to perform the CRC16
+    * @param   off         offset into array
+    * @param   len         length of data to crc
+    * @return  CRC16 value
+    */
+   public static int compute (byte dataToCrc [], int off, int len)
+   {
+      return compute(dataToCrc, off, len, 0);
+   }
+
+   /**
+    * Perform the CRC16 on an array of data elements based on the
+    * provided seed.
+    * <p>
+    * CRC16 is based on the polynomial = X^16 + X^15 + X^2 + 1.
+    *
+    * @param   dataToCrc   array of data elements on which to perform the CRC16
+    * @param   off         offset into array
+    * @param   len         length of data to crc
+    * @param   seed        seed to use for CRC16
+    * @return  CRC16 value
+    */
+   public static int compute (byte dataToCrc [], int off, int len, int seed)
+   {
+      int[] t0 = crc_slice [0], t1 = crc_slice [1], t2 = crc_slice [2],
+            t3 = crc_slice [3], t4 = crc_slice [4], t5 = crc_slice [5],
+            t6 = crc_slice [6], t7 = crc_slice [7];
+      int CRC16 = seed & 0x0FFFF;
+      int end   = off + len;
+
+      // loop to do the crc on eight data elements at a time
+      for (; off + 8 <= end; off += 8)
+         CRC16 = t7 [(CRC16 ^ dataToCrc [off]) & 0x0FF]
+               ^ t6 [((CRC16 >>> 8) ^ dataToCrc [off + 1]) & 0x0FF]
+               ^ t5 [dataToCrc [off + 2] & 0x0FF]
+               ^ t4 [dataToCrc [off + 3] & 0x0FF]
+               ^ t3 [dataToCrc [off + 4] & 0x0FF]
+               ^ t2 [dataToCrc [off + 5] & 0x0FF]
+               ^ t1 [dataToCrc [off + 6] & 0x0FF]
+               ^ t0 [dataToCrc [off + 7] & 0x0FF];
+
+      // loop to do the crc on each remaining data element
+      for (; off < end; off++)
+         CRC16 = (CRC16 >>> 8) ^ t0 [(CRC16 ^ dataToCrc [off]) & 0x0FF];
+
+      return CRC16;
+   }
+
+   /**
+    * Perform the CRC16 on the remaining data elements of a buffer based
+    * on a zero seed.  The position of the buffer is not changed.
+    * <p>
+    * CRC16 is based on the polynomial = X^16 + X^15 + X^2 + 1.
+    *
+    * @param   dataToCrc   buffer of data elements on which to perform the CRC16
+    * @return  CRC16 value
+    */
+   public static int compute (ByteBuffer dataToCrc)
+   {
+      return compute(dataToCrc, 0);
+   }
+
+   /**
+    * Perform the CRC16 on the remaining data elements of a buffer based
+    * on the provided seed.  The position of the buffer is not changed.
+    * Direct buffers are read in place.
+    * <p>
+    * CRC16 is based on the polynomial = X^16 + X^15 + X^2 + 1.
+    *
+    * @param   dataToCrc   buffer of data elements on which to perform the CRC16
+    * @param   seed        seed to use for CRC16
+    * @return  CRC16 value
+    */
+   public static int compute (ByteBuffer dataToCrc, int seed)
+   {
+      int off = dataToCrc.position();
+      int end = dataToCrc.limit();
+
+      if (dataToCrc.hasArray())
+         return compute(dataToCrc.array(), dataToCrc.arrayOffset() + off,
+                        end - off, seed);
+
+      int[] t0 = crc_slice [0], t1 = crc_slice [1], t2 = crc_slice [2],
+            t3 = crc_slice [3], t4 = crc_slice [4], t5 = crc_slice [5],
+            t6 = crc_slice [6], t7 = crc_slice [7];
+      int CRC16 = seed & 0x0FFFF;
+
+      // loop to do the crc on eight data elements at a time
+      for (; off + 8 <= end; off += 8)
+         CRC16 = t7 [(CRC16 ^ dataToCrc.get(off)) & 0x0FF]
+               ^ t6 [((CRC16 >>> 8) ^ dataToCrc.get(off + 1)) & 0x0FF]
+               ^ t5 [dataToCrc.get(off + 2) & 0x0FF]
+               ^ t4 [dataToCrc.get(off + 3) & 0x0FF]
+               ^ t3 [dataToCrc.get(off + 4) & 0x0FF]
+               ^ t2 [dataToCrc.get(off + 5) & 0x0FF]
+               ^ t1 [dataToCrc.get(off + 6) & 0x0FF]
+               ^ t0 [dataToCrc.get(off + 7) & 0x0FF];
+
+      // loop to do the crc on each remaining data element
+      for (; off < end; off++)
+         CRC16 = (CRC16 >>> 8) ^ t0 [(CRC16 ^ dataToCrc.get(off)) & 0x0FF];
+
+      return CRC16;
+   }
+}
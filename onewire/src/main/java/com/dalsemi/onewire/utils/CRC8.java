@@ -28,6 +28,8 @@
 
 package com.dalsemi.onewire.utils;
 
+import java.nio.ByteBuffer;
+
 /**
  * CRC8 is a class to contain an implementation of the
  * Cyclic-Redundency-Check CRC8 for the iButton.  The CRC8 is used
@@ -35,6 +37,10 @@ package com.dalsemi.onewire.utils;
  * devices.
  * <p>
  * CRC8 is based on the polynomial = X^8 + X^5 + X^4 + 1.
+ * <p>
+ * Arrays and buffers are processed eight data elements at a time
+ * (slicing-by-8), with one table lookup per element and no dependency
+ * between the lookups of a block.
  *
  * @version    0.00, 28 Aug 2000
  * @author     DS
@@ -51,8 +57,14 @@ public class CRC8
     */
    private static byte dscrc_table [];
 
+   /**
+    * Slicing-by-8 lookup tables: dscrc_slice [k][i] is the CRC8 of
+    * element i followed by k zero elements.
+    */
+   private static int dscrc_slice [][];
+
    /*
-    * Create the lookup table
+    * Create the lookup tables
     */
    static
    {
@@ -82,6 +94,15 @@ public class CRC8
 
          dscrc_table [i] = ( byte ) crc;
       }
+
+      dscrc_slice = new int [8][256];
+
+      for (int i = 0; i < 256; i++)
+         dscrc_slice [0][i] = dscrc_table [i] & 0x0FF;
+
+      for (int k = 1; k < 8; k++)
+         for (int i = 0; i < 256; i++)
+            dscrc_slice [k][i] = dscrc_slice [0][dscrc_slice [k - 1][i]];
    }
 
    //--------
@@ -170,14 +191,28 @@ public class CRC8
     */
    public static int compute (byte dataToCrc [], int off, int len, int seed)
    {
+      int[] t0 = dscrc_slice [0], t1 = dscrc_slice [1], t2 = dscrc_slice [2],
+            t3 = dscrc_slice [3], t4 = dscrc_slice [4], t5 = dscrc_slice [5],
+            t6 = dscrc_slice [6], t7 = dscrc_slice [7];
+      int CRC8 = seed & 0x0FF;
+      int end  = off + len;
 
-      // loop to do the crc on each data element
-      int CRC8 = seed;
+      // loop to do the crc on eight data elements at a time
+      for (; off + 8 <= end; off += 8)
+         CRC8 = t7 [(CRC8 ^ dataToCrc [off]) & 0x0FF]
+              ^ t6 [dataToCrc [off + 1] & 0x0FF]
+              ^ t5 [dataToCrc [off + 2] & 0x0FF]
+              ^ t4 [dataToCrc [off + 3] & 0x0FF]
+              ^ t3 [dataToCrc [off + 4] & 0x0FF]
+              ^ t2 [dataToCrc [off + 5] & 0x0FF]
+              ^ t1 [dataToCrc [off + 6] & 0x0FF]
+              ^ t0 [dataToCrc [off + 7] & 0x0FF];
 
-      for (int i = 0; i < len; i++)
-         CRC8 = dscrc_table [(CRC8 ^ dataToCrc [i + off]) & 0x0FF];
+      // loop to do the crc on each remaining data element
+      for (; off < end; off++)
+         CRC8 = t0 [(CRC8 ^ dataToCrc [off]) & 0x0FF];
 
-      return (CRC8 & 0x0FF);
+      return CRC8;
    }
 
    /**
@@ -194,4 +229,124 @@ public class CRC8
    {
       return compute(dataToCrc, 0, dataToCrc.length, seed);
    }
+
+   /**
+    * Perform the CRC8 on the remaining data elements of a buffer based
+    * on a zero seed.  The position of the buffer is not changed.
+    * <p>
+    * CRC8 is based on the polynomial = X^8 + X^5 + X^4 + 1.
+    *
+    * @param   dataToCrc   buffer of data elements on which to perform the CRC8
+    * @return  CRC8 value
+    */
+   public static int compute (ByteBuffer dataToCrc)
+   {
+      return compute(dataToCrc, 0);
+   }
+
+   /**
+    * Perform the CRC8 on the remaining data elements of a buffer based
+    * on the provided seed.  The position of the buffer is not changed.
+    * Direct buffers are read in place.
+    * <p>
+    * CRC8 is based on the polynomial = X^8 + X^5 + X^4 + 1.
+    *
+    * @param   dataToCrc   buffer of data elements on which to perform the CRC8
+    * @param   seed        seed to use for CRC8
+    * @return  CRC8 value
+    */
+   public static int compute (ByteBuffer dataToCrc, int seed)
+   {
+      int off = dataToCrc.position();
+      int end = dataToCrc.limit();
+
+      if (dataToCrc.hasArray())
+         return compute(dataToCrc.array(), dataToCrc.arrayOffset() + off,
+                        end - off, seed);
+
+      int[] t0 = dscrc_slice [0], t1 = dscrc_slice [1], t2 = dscrc_slice [2],
+            t3 = dscrc_slice [3], t4 = dscrc_slice [4], t5 = dscrc_slice [5],
+            t6 = dscrc_slice [6], t7 = dscrc_slice [7];
+      int CRC8 = seed & 0x0FF;
+
+      // loop to do the crc on eight data elements at a time
+      for (; off + 8 <= end; off += 8)
+         CRC8 = t7 [(CRC8 ^ dataToCrc.get(off)) & 0x0FF]
+              ^ t6 [dataToCrc.get(off + 1) & 0x0FF]
+              ^ t5 [dataToCrc.get(off + 2) & 0x0FF]
+              ^ t4 [dataToCrc.get(off + 3) & 0x0FF]
+              ^ t3 [dataToCrc.get(off + 4) & 0x0FF]
+              ^ t2 [dataToCrc.get(off + 5) & 0x0FF]
+              ^ t1 [dataToCrc.get(off + 6) & 0x0FF]
+              ^ t0 [dataToCrc.get(off + 7) & 0x0FF];
+
+      // loop to do the crc on each remaining data element
+      for (; off < end; off++)
+         CRC8 = t0 [(CRC8 ^ dataToCrc.get(off)) & 0x0FF];
+
+      return CRC8;
+   }
+
+   //--------
+   //-------- Accumulator
+   //--------
+
+   /**
+    * Accumulator for a CRC8 computed one data element at a time, as
+    * the data arrives.  Running the CRC8 over data followed by its own
+    * CRC8 gives a zero value.
+    * <p>
+    * CRC8 is based on the polynomial = X^8 + X^5 + X^4 + 1.
+    */
+   public static class Accumulator
+   {
+      private int crc;
+
+      /**
+       * Create an accumulator with a zero seed.
+       */
+      public Accumulator ()
+      {
+      }
+
+      /**
+       * Start over with a zero seed.
+       */
+      public void reset ()
+      {
+         crc = 0;
+      }
+
+      /**
+       * Add a data element to the CRC8.
+       *
+       * @param   dataToCrc   data element to add
+       */
+      public void update (int dataToCrc)
+      {
+         crc = dscrc_table [(crc ^ dataToCrc) & 0x0FF] & 0x0FF;
+      }
+
+      /**
+       * Add an array of data elements to the CRC8.
+       *
+       * @param   dataToCrc   array of data elements to add
+       * @param   off         offset into array
+       * @param   len         length of data to add
+       */
+      public void update (byte dataToCrc [], int off, int len)
+      {
+         crc = compute(dataToCrc, off, len, crc);
+      }
+
+      /**
+       * Get the CRC8 of the data added so far.
+       *
+       * @return  CRC8 value
+       */
+      public int getValue ()
+      {
+         return crc;
+      }
+   }
 }
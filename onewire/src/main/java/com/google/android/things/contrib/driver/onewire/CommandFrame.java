@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+/**
+ * A transaction whose bytes never change, e.g. MATCH_ROM, the ROM ID of a sensor and
+ * CONVERT_T, framed once when the device is bound and replayed for every reading. On a
+ * {@link UartBusMaster} the frame also keeps its bit slots, so a replay is a single UART
+ * write and only the response is decoded.
+ *
+ * @see OneWire#oneWireFrame(int, long, int)
+ */
+final class CommandFrame {
+    // OneWire ID of the device, or 0 for all devices.
+    final long mId;
+    // ROM select and command, then 0xff for every byte to read.
+    final byte[] mBytes;
+    // Number of bytes before the response.
+    final int mWriteCount;
+    // Bit slots of mBytes for a UART bus master, null for other bus masters.
+    final byte[] mSlots;
+
+    CommandFrame(long id, byte[] bytes, int writeCount, byte[] slots) {
+        mId = id;
+        mBytes = bytes;
+        mWriteCount = writeCount;
+        mSlots = slots;
+    }
+
+    /**
+     * Returns the number of bytes read after the command.
+     */
+    int getReadCount() {
+        return mBytes.length - mWriteCount;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+/**
+ * Tracks the readings of one device on a bus and decides when it is worth the bus time to
+ * read it again. A failed reading backs the device off exponentially, and a device whose
+ * recent error rate crosses a threshold is quarantined for a while, so that a flaky sensor
+ * does not slow down the healthy ones on the same bus.
+ * <p>
+ * Times are in milliseconds on any monotonic clock, e.g. {@code System.nanoTime() / 1000000}.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class DeviceHealth {
+
+    /**
+     * The device is read on every cycle.
+     */
+    public static final int STATE_HEALTHY = 0;
+    /**
+     * The device failed recently and is skipped until its backoff expires.
+     */
+    public static final int STATE_BACKING_OFF = 1;
+    /**
+     * The device fails too often and is skipped until its quarantine expires.
+     */
+    public static final int STATE_QUARANTINED = 2;
+
+    static final int DEFAULT_MAX_RETRIES = 2;
+    static final long DEFAULT_INITIAL_BACKOFF_MS = 1000;
+    static final long DEFAULT_MAX_BACKOFF_MS = 60 * 1000;
+    static final float DEFAULT_QUARANTINE_ERROR_RATE = 0.5f;
+    static final long DEFAULT_QUARANTINE_MS = 10 * 60 * 1000;
+    // Number of recent readings the error rate is computed over.
+    static final int HISTORY_SIZE = 16;
+    // Readings needed before the error rate can quarantine the device.
+    static final int MIN_HISTORY = 8;
+
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+    private long mInitialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MS;
+    private long mMaxBackoffMillis = DEFAULT_MAX_BACKOFF_MS;
+    private float mQuarantineErrorRate = DEFAULT_QUARANTINE_ERROR_RATE;
+    private long mQuarantineMillis = DEFAULT_QUARANTINE_MS;
+
+    // Outcomes of the recent readings, one bit each with the latest in bit 0, set on failure.
+    private int mHistory;
+    private int mHistoryCount;
+    private int mConsecutiveFailures;
+    private boolean mQuarantined;
+    // Set while the device must not be read before mNextAttemptMillis.
+    private boolean mWaiting;
+    private long mNextAttemptMillis;
+
+    /**
+     * Set how many times a failed transaction is run again within the same reading.
+     */
+    public synchronized void setMaxRetries(int maxRetries) {
+        mMaxRetries = maxRetries;
+    }
+
+    /**
+     * Returns how many times a failed transaction is run again within the same reading.
+     */
+    public synchronized int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    /**
+     * Set the backoff after a failed reading. It doubles with every consecutive failure.
+     *
+     * @param initialMillis backoff after the first failure.
+     * @param maxMillis     longest backoff.
+     */
+    public synchronized void setBackoff(long initialMillis, long maxMillis) {
+        mInitialBackoffMillis = initialMillis;
+        mMaxBackoffMillis = maxMillis;
+    }
+
+    /**
+     * Set when the device is quarantined and for how long.
+     *
+     * @param errorRate      fraction of the recent readings that must have failed.
+     * @param durationMillis time the device is skipped before it is probed again.
+     */
+    public synchronized void setQuarantine(float errorRate, long durationMillis) {
+        mQuarantineErrorRate = errorRate;
+        mQuarantineMillis = durationMillis;
+    }
+
+    /**
+     * Returns true if the device should be read now.
+     */
+    public synchronized boolean isAvailable(long nowMillis) {
+        return !mWaiting || nowMillis - mNextAttemptMillis >= 0;
+    }
+
+    /**
+     * Returns one of the {@code STATE_*} constants.
+     */
+    public synchronized int getState(long nowMillis) {
+        if (mQuarantined) {
+            return STATE_QUARANTINED;
+        }
+        return isAvailable(nowMillis) ? STATE_HEALTHY : STATE_BACKING_OFF;
+    }
+
+    /**
+     * Returns the fraction of the recent readings that failed.
+     */
+    public synchronized float getErrorRate() {
+        return mHistoryCount == 0 ? 0 : Integer.bitCount(mHistory) / (float) mHistoryCount;
+    }
+
+    /**
+     * Returns the number of readings that failed in a row.
+     */
+    public synchronized int getConsecutiveFailures() {
+        return mConsecutiveFailures;
+    }
+
+    /**
+     * Record a valid reading.
+     */
+    public synchronized void recordSuccess(long nowMillis) {
+        if (mQuarantined) {
+            // The probe after the quarantine succeeded: start over.
+            mQuarantined = false;
+            mHistory = 0;
+            mHistoryCount = 0;
+        }
+        addHistory(false);
+        mConsecutiveFailures = 0;
+        mWaiting = false;
+    }
+
+    /**
+     * Record a failed reading, after its retries.
+     */
+    public synchronized void recordFailure(long nowMillis) {
+        addHistory(true);
+        mConsecutiveFailures++;
+        mWaiting = true;
+        if (mQuarantined || (mHistoryCount >= MIN_HISTORY
+                && getErrorRate() >= mQuarantineErrorRate)) {
+            mQuarantined = true;
+            mNextAttemptMillis = nowMillis + mQuarantineMillis;
+        } else {
+            int doublings = Math.min(mConsecutiveFailures - 1, 30);
+            long backoff = mInitialBackoffMillis << doublings;
+            if (backoff > mMaxBackoffMillis || backoff < 0) {
+                backoff = mMaxBackoffMillis;
+            }
+            mNextAttemptMillis = nowMillis + backoff;
+        }
+    }
+
+    private void addHistory(boolean failure) {
+        mHistory = (mHistory << 1) | (failure ? 1 : 0);
+        mHistory &= (1 << HISTORY_SIZE) - 1;
+        if (mHistoryCount < HISTORY_SIZE) {
+            mHistoryCount++;
+        }
+    }
+}
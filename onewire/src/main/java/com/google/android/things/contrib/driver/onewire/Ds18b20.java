@@ -23,8 +23,8 @@ import com.google.android.things.pio.UartDevice;
 import com.dalsemi.onewire.utils.CRC8;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Future;
 
 /**
  * Driver for the DS18B20 temperature sensor.
@@ -34,8 +34,16 @@ public class Ds18b20 implements AutoCloseable {
 
     private static final String TAG = Ds18b20.class.getSimpleName();
 
+    /**
+     * Family code of the DS18B20 OneWire IDs.
+     */
+    public static final int FAMILY_CODE = 0x28;
+
     static final int DS18X20_CONVERT_T = 0x44;
     static final int DS18X20_READ = 0xBE;
+    static final int DS18X20_WRITE = 0x4E;
+    static final int DS18X20_COPY = 0x48;
+    static final int DS18X20_RECALL = 0xB8;
 
     // Sensor constants from the datasheet.
     // https://datasheets.maximintegrated.com/en/ds/DS18B20.pdf
@@ -62,19 +70,65 @@ public class Ds18b20 implements AutoCloseable {
      */
     public static final float MIN_FREQ_HZ = 1/600f;
 
+    /**
+     * 9-bit resolution, 0.5 degrees Celsius.
+     */
+    public static final int RESOLUTION_9_BIT = 9;
+    /**
+     * 10-bit resolution, 0.25 degrees Celsius.
+     */
+    public static final int RESOLUTION_10_BIT = 10;
+    /**
+     * 11-bit resolution, 0.125 degrees Celsius.
+     */
+    public static final int RESOLUTION_11_BIT = 11;
+    /**
+     * 12-bit resolution, 0.0625 degrees Celsius. This is the power-on default.
+     */
+    public static final int RESOLUTION_12_BIT = 12;
+
+    /**
+     * Raw temperature returned for a scratchpad that fails its CRC check.
+     */
+    public static final int INVALID_RAW_TEMPERATURE = Integer.MIN_VALUE;
+
+    // Worst-case conversion time at 12-bit resolution. It halves with every bit less.
+    static final int MAX_CONVERSION_US = 750000;
+    // Longest time to copy the scratchpad to EEPROM.
+    static final int MAX_COPY_MS = 10;
+    // Longest time to wait for a recall from EEPROM, which normally takes microseconds.
+    static final int MAX_RECALL_MS = 10;
+
+    static final int SCRATCHPAD_SIZE = 9;
+    static final int SCRATCHPAD_TH = 2;
+    static final int SCRATCHPAD_TL = 3;
+    static final int SCRATCHPAD_CONFIG = 4;
+    // Times a scratchpad read runs again when its CRC8 does not match.
+    static final int READ_RETRIES = 2;
+
     OneWire mOneWire;
     long mOneWireId = 0;
+    // Set when the bus is shared through the registry instead of owned by this driver.
+    private OneWireRegistry mRegistry;
+    private boolean mReleased;
+    int mResolution = RESOLUTION_12_BIT;
+    // Reused for every reading so that sampling does not allocate.
+    private final byte[] mScratchpad = new byte[SCRATCHPAD_SIZE];
+    // Transactions of every reading, framed when the sensor ID is bound.
+    private CommandFrame mConvertFrame;
+    private CommandFrame mReadFrame;
 
     /**
-     * Create a new Ds18b20 sensor driver connected on the given UART.
+     * Create a new Ds18b20 sensor driver connected on the given UART. The UART is shared with
+     * all other drivers on it through {@link OneWireRegistry}. If the registry has a
+     * {@link RomIdCache}, the driver takes the first cached sensor once all cached sensors
+     * answer.
      *
      * @param uart UART port the sensor is connected to.
      * @throws IOException
      */
     public Ds18b20(String uart) throws IOException {
-        this(uart, 0);
-        Log.i(TAG, "Finding ROM.");
-        mOneWireId = mOneWire.oneWireFindRom();
+        this(OneWireRegistry.getInstance(), uart);
     }
 
     /**
@@ -85,8 +139,57 @@ public class Ds18b20 implements AutoCloseable {
      * @throws IOException
      */
     public Ds18b20(String uart, long id) throws IOException {
-        mOneWire = new OneWire(uart);
-        mOneWireId = id;
+        this(OneWireRegistry.getInstance(), uart, id);
+    }
+
+    /**
+     * Create a new Ds18b20 sensor driver for the first sensor on a UART of the given registry.
+     * The search runs as a transaction of the bus executor, so it does not interleave with the
+     * readings of other drivers on the UART.
+     *
+     * @param registry registry sharing the bus.
+     * @param uart     UART port the sensor is connected to.
+     * @throws IOException
+     */
+    @VisibleForTesting
+    /*package*/ Ds18b20(OneWireRegistry registry, final String uart) throws IOException {
+        this(registry, uart, 0);
+        Log.i(TAG, "Finding ROM.");
+        final RomIdCache cache = registry.getRomIdCache();
+        try {
+            bind(registry.getExecutor(mOneWire).runAndWait(
+                    new OneWireBusExecutor.Transaction<Long>() {
+                        @Override
+                        public Long run(OneWire oneWire) throws IOException {
+                            if (cache == null) {
+                                return findFirst(oneWire);
+                            }
+                            long[] ids = findAll(oneWire, uart, cache);
+                            if (ids.length == 0) {
+                                throw new IOException("DS18B20 not found");
+                            }
+                            return ids[0];
+                        }
+                    }));
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a new Ds18b20 sensor driver on a UART of the given registry with particular ID.
+     *
+     * @param registry registry sharing the bus.
+     * @param uart     UART port the sensor is connected to.
+     * @param id       OneWire ID of the sensor.
+     * @throws IOException
+     */
+    @VisibleForTesting
+    /*package*/ Ds18b20(OneWireRegistry registry, String uart, long id) throws IOException {
+        mRegistry = registry;
+        mOneWire = registry.acquire(uart);
+        bind(id);
     }
 
     /**
@@ -110,9 +213,121 @@ public class Ds18b20 implements AutoCloseable {
     @VisibleForTesting
     /*package*/ Ds18b20(UartDevice device, long id) throws IOException {
         mOneWire = new OneWire(device);
+        bind(id);
+    }
+
+    /**
+     * Create a new Ds18b20 sensor driver for the only sensor on the given bus master, e.g. a
+     * {@link Ds2482BusMaster}. Closing the driver closes the bus master.
+     *
+     * @param master bus master the sensor is connected to.
+     * @throws IOException
+     */
+    public Ds18b20(OneWireBusMaster master) throws IOException {
+        this(master, 0);
+        try {
+            bind(findFirst(mOneWire));
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a new Ds18b20 sensor driver on the given bus master with particular ID. Closing
+     * the driver closes the bus master.
+     *
+     * @param master bus master the sensor is connected to.
+     * @param id     OneWire ID of the sensor.
+     */
+    public Ds18b20(OneWireBusMaster master, long id) {
+        mOneWire = new OneWire(master);
+        bind(id);
+    }
+
+
+    /**
+     * Find the OneWire IDs of all DS18B20 sensors connected on the given UART. If the registry
+     * has a {@link RomIdCache}, the cached IDs are returned when every cached sensor answers,
+     * and the bus is searched only otherwise.
+     *
+     * @param uart UART port the sensors are connected to.
+     * @return OneWire IDs of the sensors.
+     * @throws IOException
+     */
+    public static long[] findAll(final String uart) throws IOException {
+        OneWireRegistry registry = OneWireRegistry.getInstance();
+        OneWire oneWire = registry.acquire(uart);
+        final RomIdCache cache = registry.getRomIdCache();
+        try {
+            // Other drivers may be using the bus, so search from a transaction.
+            return registry.getExecutor(oneWire).runAndWait(
+                    new OneWireBusExecutor.Transaction<long[]>() {
+                        @Override
+                        public long[] run(OneWire bus) throws IOException {
+                            return findAll(bus, uart, cache);
+                        }
+                    });
+        } finally {
+            registry.release(oneWire);
+        }
+    }
+
+    // Find the first DS18B20. The search targets its family code, so that other devices on the
+    // bus are skipped instead of taken for the sensor.
+    static long findFirst(OneWire oneWire) throws IOException {
+        long id = oneWire.searchNext(new RomSearch(FAMILY_CODE));
+        if (id == 0) {
+            throw new IOException("DS18B20 not found");
+        }
+        return id;
+    }
+
+    // Take the cached IDs if all those sensors answer, else search and cache the result.
+    static long[] findAll(OneWire oneWire, String uart, RomIdCache cache) throws IOException {
+        if (cache == null) {
+            return oneWire.searchRoms(FAMILY_CODE);
+        }
+        long[] ids = cache.load(uart);
+        if (ids.length > 0 && allAnswer(oneWire, ids)) {
+            return ids;
+        }
+        ids = oneWire.searchRoms(FAMILY_CODE);
+        try {
+            cache.store(uart, ids);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to cache ROM IDs", e);
+        }
+        return ids;
+    }
+
+    // Probe every sensor with a MATCH_ROM scratchpad read, which is a single burst. A missing
+    // sensor leaves every slot high, and nine bytes of ones fail the CRC8.
+    private static boolean allAnswer(OneWire oneWire, long[] ids) throws IOException {
+        byte[] scratchpad = new byte[SCRATCHPAD_SIZE];
+        for (long id : ids) {
+            if ((id >>> 56) != FAMILY_CODE || !oneWire.oneWireCheckedTransaction(DS18X20_READ,
+                    id, scratchpad, 0, SCRATCHPAD_SIZE, 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Set the ID of the sensor and frame the transactions repeated for every reading. This is
+    // the only place the ID changes, so the frames always match it.
+    private void bind(long id) {
         mOneWireId = id;
+        mConvertFrame = mOneWire.oneWireFrame(DS18X20_CONVERT_T, id, 0);
+        mReadFrame = mOneWire.oneWireFrame(DS18X20_READ, id, SCRATCHPAD_SIZE);
     }
 
+    // Read the scratchpad of the bound sensor, retrying while its CRC8 does not match.
+    private void readScratchpad(OneWire oneWire) throws IOException {
+        if (!oneWire.oneWireCheckedTransaction(mReadFrame, mScratchpad, 0, READ_RETRIES)) {
+            throw new IOException("Invalid CRC8");
+        }
+    }
 
     /**
      * Returns the One Wire Device ID.
@@ -121,46 +336,416 @@ public class Ds18b20 implements AutoCloseable {
         return mOneWireId;
     }
 
+    /**
+     * Returns the counters and latency histograms of the bus the sensor is connected to.
+     */
+    public OneWireStats getStats() {
+        return mOneWire.getStats();
+    }
+
+    /**
+     * Read the resolution of the temperature conversion from the sensor.
+     *
+     * @return the resolution in bits, one of the {@code RESOLUTION_*} constants.
+     * @throws IOException
+     */
+    public int getResolution() throws IOException {
+        return runOnBus(new OneWireBusExecutor.Transaction<Integer>() {
+            @Override
+            public Integer run(OneWire oneWire) throws IOException {
+                readScratchpad(oneWire, getOneWireId(), mScratchpad);
+                mResolution = resolutionOf(mScratchpad);
+                return mResolution;
+            }
+        });
+    }
+
+    /**
+     * Set the resolution of the temperature conversion. The setting is stored in the sensor's
+     * EEPROM and read back to verify it. Every bit less halves the conversion time.
+     *
+     * @param resolution the resolution in bits, one of the {@code RESOLUTION_*} constants.
+     * @throws IOException
+     */
+    public void setResolution(final int resolution) throws IOException {
+        runOnBus(new OneWireBusExecutor.Transaction<Void>() {
+            @Override
+            public Void run(OneWire oneWire) throws IOException {
+                writeResolution(oneWire, getOneWireId(), mScratchpad, resolution);
+                mResolution = resolution;
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Set the alarm thresholds. After each conversion the sensor flags an alarm if the
+     * temperature is at or below the low threshold, or at or above the high threshold, so that
+     * an alarm search finds it. The thresholds are stored in the sensor's EEPROM.
+     *
+     * @param low  low threshold in whole degrees Celsius.
+     * @param high high threshold in whole degrees Celsius.
+     * @throws IOException
+     * @see Ds18b20Bus#readAlarmTemperatures(long[], float[])
+     */
+    public void setAlarmThresholds(final int low, final int high) throws IOException {
+        runOnBus(new OneWireBusExecutor.Transaction<Void>() {
+            @Override
+            public Void run(OneWire oneWire) throws IOException {
+                writeAlarmThresholds(oneWire, getOneWireId(), mScratchpad, low, high);
+                return null;
+            }
+        });
+    }
+
     /**
      * Read the current temperature.
      *
      * @return the current temperature in degrees Celsius
      */
     float readTemperature() throws IOException {
-        Log.i(TAG, "Reading Temperature.");
-        mOneWire.oneWireCommand(DS18X20_CONVERT_T, getOneWireId());
-        // Wait for conversion.
+        return readRawTemperature() / 16f;
+    }
+
+    /**
+     * A temperature conversion started by {@link #startConversion()}.
+     */
+    public static class Conversion {
+        private final OneWireClock mClock;
+        private final long mOneWireId;
+        private final int mResolution;
+        private final long mStartNanos;
+        private final long mReadyTimeNanos;
+
+        Conversion(OneWireClock clock, long oneWireId, int resolution, long startNanos) {
+            mClock = clock;
+            mOneWireId = oneWireId;
+            mResolution = resolution;
+            mStartNanos = startNanos;
+            mReadyTimeNanos = startNanos + conversionTimeMillis(resolution) * 1000000L;
+        }
+
+        /**
+         * Returns the earliest {@link OneWireClock#nanoTime()} of the bus at which the result is
+         * guaranteed to be ready.
+         */
+        public long getReadyTimeNanos() {
+            return mReadyTimeNanos;
+        }
+
+        /**
+         * Returns the time in milliseconds left until the result is ready, 0 if it is ready.
+         */
+        public long getDelayMillis() {
+            long delayNanos = mReadyTimeNanos - mClock.nanoTime();
+            return delayNanos > 0 ? (delayNanos + 999999) / 1000000 : 0;
+        }
+    }
+
+    /**
+     * Start a temperature conversion and return without waiting for it. The bus is free for
+     * other devices until the result is collected.
+     *
+     * @return the conversion to pass to {@link #collectResult(Conversion)}.
+     * @throws IOException
+     */
+    public Conversion startConversion() throws IOException {
+        return runOnBus(new OneWireBusExecutor.Transaction<Conversion>() {
+            @Override
+            public Conversion run(OneWire oneWire) throws IOException {
+                return startConversion(oneWire);
+            }
+        });
+    }
+
+    private Conversion startConversion(OneWire oneWire) throws IOException {
+        OneWireClock clock = oneWire.getClock();
+        long start = clock.nanoTime();
+        oneWire.oneWireCommand(mConvertFrame);
+        return new Conversion(clock, getOneWireId(), mResolution, start);
+    }
+
+    /**
+     * Read the result of a conversion, waiting until it is ready if needed.
+     *
+     * @param conversion the conversion returned by {@link #startConversion()}.
+     * @return the temperature in degrees Celsius.
+     * @throws IOException
+     */
+    public float collectResult(final Conversion conversion) throws IOException {
+        // Wait outside of the transaction, so that other drivers can use the bus meanwhile.
+        waitUntilReady(conversion);
+        return runOnBus(new OneWireBusExecutor.Transaction<Float>() {
+            @Override
+            public Float run(OneWire oneWire) throws IOException {
+                return collectResult(oneWire, conversion);
+            }
+        });
+    }
+
+    private float collectResult(OneWire oneWire, Conversion conversion) throws IOException {
+        waitUntilReady(conversion);
+        // The conversion time has passed, so this normally returns on the first poll.
+        waitForConversion(oneWire, conversion.mResolution, conversion.mStartNanos);
+        if (conversion.mOneWireId == mOneWireId) {
+            readScratchpad(oneWire);
+        } else {
+            readScratchpad(oneWire, conversion.mOneWireId, mScratchpad);
+        }
+        return rawTemperatureOf(mScratchpad, 0, conversion.mResolution) / 16f;
+    }
+
+    /**
+     * Read the current temperature through the executor of the bus. The bus is free for other
+     * transactions while the sensor converts. Do not use the other methods of this driver until
+     * the future completes.
+     *
+     * @param executor executor of the bus the sensor is connected to.
+     * @return future with the current temperature in degrees Celsius.
+     * @throws IllegalArgumentException if the executor runs another bus.
+     */
+    public Future<Float> readTemperature(OneWireBusExecutor executor) {
+        // The frames of the sensor were encoded for its own bus master.
+        if (executor.getOneWire() != mOneWire) {
+            throw new IllegalArgumentException("Executor does not run the bus of this sensor");
+        }
+        final Conversion[] conversion = new Conversion[1];
+        return executor.submit(new OneWireBusExecutor.Transaction<Void>() {
+            @Override
+            public Void run(OneWire oneWire) throws IOException {
+                conversion[0] = startConversion(oneWire);
+                return null;
+            }
+        }, conversionTimeMillis(mResolution), new OneWireBusExecutor.Transaction<Float>() {
+            @Override
+            public Float run(OneWire oneWire) throws IOException {
+                return collectResult(oneWire, conversion[0]);
+            }
+        });
+    }
+
+    /**
+     * Read the current temperature as a raw value, without converting it to floating point.
+     *
+     * @return the current temperature in 1/16 degrees Celsius.
+     * @throws IOException
+     * @see #decodeRawTemperature(byte[], int, int)
+     */
+    public int readRawTemperature() throws IOException {
+        if (mRegistry == null) {
+            // An owned bus needs no transaction, so that sampling it does not allocate.
+            return readRawTemperature(mOneWire);
+        }
+        return runOnBus(new OneWireBusExecutor.Transaction<Integer>() {
+            @Override
+            public Integer run(OneWire oneWire) throws IOException {
+                return readRawTemperature(oneWire);
+            }
+        });
+    }
+
+    private int readRawTemperature(OneWire oneWire) throws IOException {
+        long start = oneWire.getClock().nanoTime();
+        oneWire.oneWireCommand(mConvertFrame);
+        waitForConversion(oneWire, mResolution, start);
+        readScratchpad(oneWire);
+        return rawTemperatureOf(mScratchpad, 0, mResolution);
+    }
+
+    // Run a transaction on the bus. A bus shared through the registry is only used from its
+    // executor, so that the transaction does not interleave with those of other drivers.
+    private <T> T runOnBus(OneWireBusExecutor.Transaction<T> transaction) throws IOException {
+        if (mRegistry == null) {
+            return transaction.run(mOneWire);
+        }
+        return mRegistry.getExecutor(mOneWire).runAndWait(transaction);
+    }
+
+    private static void waitUntilReady(Conversion conversion) throws IOException {
+        long delayMillis = conversion.getDelayMillis();
+        if (delayMillis > 0) {
+            try {
+                conversion.mClock.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for conversion.");
+            }
+        }
+    }
+
+    /**
+     * Decode the temperature of a scratchpad after verifying its CRC8.
+     *
+     * @param scratchpad array holding the scratchpad.
+     * @param offset     index of the scratchpad in the array.
+     * @param resolution resolution of the conversion; undefined low bits are cleared.
+     * @return the temperature in 1/16 degrees Celsius.
+     * @throws IOException if the CRC8 does not match.
+     */
+    public static short decodeRawTemperature(byte[] scratchpad, int offset, int resolution)
+            throws IOException {
+        verifyScratchpad(scratchpad, offset);
+        return rawTemperatureOf(scratchpad, offset, resolution);
+    }
+
+    /**
+     * Decode the temperatures of consecutive scratchpads, e.g. a log of readings.
+     *
+     * @param scratchpads array holding the scratchpads back to back.
+     * @param offset      index of the first scratchpad in the array.
+     * @param count       number of scratchpads.
+     * @param resolution  resolution of the conversions; undefined low bits are cleared.
+     * @param raws        array to fill with the temperatures in 1/16 degrees Celsius. A
+     *                    scratchpad that fails its CRC check gets
+     *                    {@link #INVALID_RAW_TEMPERATURE}.
+     * @param rawOffset   index in raws of the first temperature.
+     * @return the number of valid temperatures.
+     */
+    public static int decodeRawTemperatures(byte[] scratchpads, int offset, int count,
+            int resolution, int[] raws, int rawOffset) {
+        int valid = 0;
+        for (int i = 0; i < count; ++i, offset += SCRATCHPAD_SIZE) {
+            if (CRC8.compute(scratchpads, offset, SCRATCHPAD_SIZE) == 0) {
+                raws[rawOffset + i] = rawTemperatureOf(scratchpads, offset, resolution);
+                valid++;
+            } else {
+                raws[rawOffset + i] = INVALID_RAW_TEMPERATURE;
+            }
+        }
+        return valid;
+    }
+
+    float convertTemperature(byte[] rawMeasure) throws IOException {
+        return decodeTemperature(rawMeasure, RESOLUTION_12_BIT);
+    }
+
+    /**
+     * Returns the worst-case conversion time in milliseconds for the given resolution.
+     */
+    static long conversionTimeMillis(int resolution) {
+        return ((MAX_CONVERSION_US >> (RESOLUTION_12_BIT - resolution)) + 999) / 1000;
+    }
+
+    // Wait for a conversion started at startNanos: converting devices hold read slots low.
+    static void waitForConversion(OneWire oneWire, int resolution, long startNanos)
+            throws IOException {
+        long maxMillis = conversionTimeMillis(resolution);
+        // Poll often enough to notice completion within a small part of the conversion time.
+        long pollMillis = Math.max(1, maxMillis / 16);
+        long deadline = startNanos + (maxMillis + pollMillis) * 1000000L;
+        OneWireStats stats = oneWire.getStats();
+        OneWireClock clock = oneWire.getClock();
         try {
-            for (int i = 1; i < 10; ++i) {
-                if(mOneWire.oneWireBit(true))
-                    break;
-                Thread.sleep(100);
+            while (!oneWire.oneWireBit(true)) {
+                if (clock.nanoTime() - deadline > 0) {
+                    stats.increment(OneWireStats.COUNTER_TIMEOUTS);
+                    throw new IOException("Conversion timeout");
+                }
+                clock.sleep(pollMillis);
             }
         } catch (InterruptedException e) {
-            throw new IOException("Interrupted waiting for conversion.");
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for conversion.");
         }
-        // Read result.
-        mOneWire.oneWireCommand(DS18X20_READ, getOneWireId());
-        float temp = convertTemperature(mOneWire.oneWireReadBytes(9));
-        Log.i(TAG, "Read Temperature: " + Float.toString(temp));
-        return temp;
+        stats.recordLatency(OneWireStats.HISTOGRAM_CONVERSION, clock.nanoTime() - startNanos);
     }
 
-    float convertTemperature(byte[] rawMeasure) throws IOException {
-        // Verify CRC8 of the result.
-        int crc = CRC8.compute(rawMeasure, 0, 9);
-        if (crc != 0) {
-            // Calculate expected CRC.
-            int crcminus = CRC8.compute(rawMeasure, 0, 8);
-            throw new IOException("Invalid CRC8. Expected: " + Integer.toHexString(crcminus));
+    // Read the scratchpad, retrying while its CRC8 does not match.
+    static void readScratchpad(OneWire oneWire, long id, byte[] scratchpad) throws IOException {
+        if (!oneWire.oneWireCheckedTransaction(DS18X20_READ, id, scratchpad, 0, SCRATCHPAD_SIZE,
+                READ_RETRIES)) {
+            throw new IOException("Invalid CRC8");
         }
+    }
 
-        ByteBuffer raw = ByteBuffer.wrap(rawMeasure).order(ByteOrder.LITTLE_ENDIAN);
-        return raw.getShort() / 16f;
+    // Change the resolution in the configuration register and keep TH and TL as they are.
+    static void writeResolution(OneWire oneWire, long id, byte[] scratchpad, int resolution)
+            throws IOException {
+        if (resolution < RESOLUTION_9_BIT || resolution > RESOLUTION_12_BIT) {
+            throw new IllegalArgumentException("Invalid resolution: " + resolution);
+        }
+        readScratchpad(oneWire, id, scratchpad);
+        // Configuration register is 0 R1 R0 1 1 1 1 1.
+        scratchpad[SCRATCHPAD_CONFIG] = (byte) (((resolution - RESOLUTION_9_BIT) << 5) | 0x1f);
+        writeScratchpad(oneWire, id, scratchpad);
+    }
+
+    // Change TH and TL and keep the configuration as it is.
+    static void writeAlarmThresholds(OneWire oneWire, long id, byte[] scratchpad, int low,
+            int high) throws IOException {
+        if (low < MIN_TEMP_C || high > MAX_TEMP_C || low > high) {
+            throw new IllegalArgumentException("Invalid alarm thresholds: " + low + ", " + high);
+        }
+        readScratchpad(oneWire, id, scratchpad);
+        scratchpad[SCRATCHPAD_TH] = (byte) high;
+        scratchpad[SCRATCHPAD_TL] = (byte) low;
+        writeScratchpad(oneWire, id, scratchpad);
+    }
+
+    // Write TH, TL and configuration and copy them to EEPROM. Then recall the EEPROM into the
+    // scratchpad and read it back, so that what is verified is the copy and not the RAM write.
+    static void writeScratchpad(OneWire oneWire, long id, byte[] scratchpad) throws IOException {
+        byte th = scratchpad[SCRATCHPAD_TH];
+        byte tl = scratchpad[SCRATCHPAD_TL];
+        int resolution = resolutionOf(scratchpad);
+        oneWire.oneWireWrite(DS18X20_WRITE, id, scratchpad, SCRATCHPAD_TH, 3);
+        oneWire.oneWireCommand(DS18X20_COPY, id);
+        OneWireClock clock = oneWire.getClock();
+        try {
+            clock.sleep(MAX_COPY_MS);
+            // The device holds read slots low until the recall is done.
+            oneWire.oneWireCommand(DS18X20_RECALL, id);
+            for (int i = 0; !oneWire.oneWireBit(true); ++i) {
+                if (i == MAX_RECALL_MS) {
+                    throw new IOException("EEPROM recall timeout");
+                }
+                clock.sleep(1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted copying scratchpad.");
+        }
+        readScratchpad(oneWire, id, scratchpad);
+        if (scratchpad[SCRATCHPAD_TH] != th || scratchpad[SCRATCHPAD_TL] != tl
+                || resolutionOf(scratchpad) != resolution) {
+            throw new IOException("Scratchpad write not verified");
+        }
+    }
+
+    static int resolutionOf(byte[] scratchpad) {
+        return RESOLUTION_9_BIT + ((scratchpad[SCRATCHPAD_CONFIG] >> 5) & 3);
+    }
+
+    static void verifyScratchpad(byte[] rawMeasure) throws IOException {
+        verifyScratchpad(rawMeasure, 0);
+    }
+
+    static void verifyScratchpad(byte[] rawMeasure, int offset) throws IOException {
+        // Verify CRC8 of the result against the CRC8 byte.
+        int crc = CRC8.compute(rawMeasure, offset, SCRATCHPAD_SIZE - 1);
+        if (crc != (rawMeasure[offset + SCRATCHPAD_SIZE - 1] & 0xff)) {
+            throw new IOException("Invalid CRC8. Expected: " + Integer.toHexString(crc));
+        }
+    }
+
+    static float decodeTemperature(byte[] rawMeasure, int resolution) throws IOException {
+        return decodeRawTemperature(rawMeasure, 0, resolution) / 16f;
+    }
+
+    // Temperature is a little-endian signed value in 1/16 degrees. The low bits are undefined
+    // below 12-bit resolution.
+    static short rawTemperatureOf(byte[] scratchpad, int offset, int resolution) {
+        short raw = (short) ((scratchpad[offset + 1] << 8) | (scratchpad[offset] & 0xff));
+        return (short) (raw & ~((1 << (RESOLUTION_12_BIT - resolution)) - 1));
     }
 
     @Override
     public void close() throws IOException {
-        mOneWire.close();
+        if (mRegistry == null) {
+            mOneWire.close();
+        } else if (!mReleased) {
+            mReleased = true;
+            mRegistry.release(mOneWire);
+        }
     }
 }
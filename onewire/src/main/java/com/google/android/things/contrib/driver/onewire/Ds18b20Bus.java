@@ -0,0 +1,380 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.google.android.things.pio.UartDevice;
+
+import java.io.IOException;
+
+/**
+ * Samples all DS18B20 sensors on one UART at once: a single broadcast conversion followed by
+ * reading each sensor's result.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class Ds18b20Bus implements AutoCloseable {
+
+    private static final String TAG = Ds18b20Bus.class.getSimpleName();
+
+    OneWire mOneWire;
+    long[] mOneWireIds;
+    // Health of each sensor, in the order of mOneWireIds.
+    private DeviceHealth[] mHealth;
+    // Scratchpad read of each sensor and the broadcast conversion, framed once.
+    private CommandFrame[] mReadFrames;
+    private CommandFrame mConvertFrame;
+    // Set when the bus is shared through the registry instead of owned by this sampler.
+    private OneWireRegistry mRegistry;
+    private boolean mReleased;
+    int mResolution = Ds18b20.RESOLUTION_12_BIT;
+    private final byte[] mScratchpad = new byte[Ds18b20.SCRATCHPAD_SIZE];
+    private final RomSearch mAlarmSearch = new RomSearch(Ds18b20.FAMILY_CODE, true);
+
+    /**
+     * Create a sampler for all DS18B20 sensors found on the given UART. The UART is shared with
+     * all other drivers on it through {@link OneWireRegistry}.
+     *
+     * @param uart UART port the sensors are connected to.
+     * @throws IOException
+     */
+    public Ds18b20Bus(String uart) throws IOException {
+        this(uart, new long[0]);
+        try {
+            // Other drivers may be using the bus, so search from a transaction.
+            setOneWireIds(mRegistry.getExecutor(mOneWire).runAndWait(
+                    new OneWireBusExecutor.Transaction<long[]>() {
+                        @Override
+                        public long[] run(OneWire oneWire) throws IOException {
+                            return oneWire.searchRoms(Ds18b20.FAMILY_CODE);
+                        }
+                    }));
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a sampler for the DS18B20 sensors with the given IDs on the given UART.
+     *
+     * @param uart UART port the sensors are connected to.
+     * @param ids  OneWire IDs of the sensors.
+     * @throws IOException
+     */
+    public Ds18b20Bus(String uart, long[] ids) throws IOException {
+        this(OneWireRegistry.getInstance(), uart, ids);
+    }
+
+    /**
+     * Create a sampler for the DS18B20 sensors with the given IDs on a UART of the given
+     * registry.
+     *
+     * @param registry registry sharing the bus.
+     * @param uart     UART port the sensors are connected to.
+     * @param ids      OneWire IDs of the sensors.
+     * @throws IOException
+     */
+    @VisibleForTesting
+    /*package*/ Ds18b20Bus(OneWireRegistry registry, String uart, long[] ids)
+            throws IOException {
+        mRegistry = registry;
+        mOneWire = registry.acquire(uart);
+        setOneWireIds(ids);
+    }
+
+    /**
+     * Create a sampler for the DS18B20 sensors with the given IDs on the given UART.
+     *
+     * @param device UART device of the sensors.
+     * @param ids    OneWire IDs of the sensors.
+     * @throws IOException
+     */
+    @VisibleForTesting
+    /*package*/ Ds18b20Bus(UartDevice device, long[] ids) throws IOException {
+        mOneWire = new OneWire(device);
+        setOneWireIds(ids);
+    }
+
+    /**
+     * Create a sampler for all DS18B20 sensors found on the given bus master, e.g. a
+     * {@link Ds2482BusMaster}. Closing the sampler closes the bus master.
+     *
+     * @param master bus master the sensors are connected to.
+     * @throws IOException
+     */
+    public Ds18b20Bus(OneWireBusMaster master) throws IOException {
+        this(master, new long[0]);
+        try {
+            setOneWireIds(mOneWire.searchRoms(Ds18b20.FAMILY_CODE));
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a sampler for the DS18B20 sensors with the given IDs on the given bus master.
+     * Closing the sampler closes the bus master.
+     *
+     * @param master bus master the sensors are connected to.
+     * @param ids    OneWire IDs of the sensors.
+     */
+    public Ds18b20Bus(OneWireBusMaster master, long[] ids) {
+        mOneWire = new OneWire(master);
+        setOneWireIds(ids);
+    }
+
+    private void setOneWireIds(long[] ids) {
+        mOneWireIds = ids.clone();
+        mHealth = new DeviceHealth[ids.length];
+        mReadFrames = new CommandFrame[ids.length];
+        for (int i = 0; i < ids.length; ++i) {
+            mHealth[i] = new DeviceHealth();
+            mReadFrames[i] = mOneWire.oneWireFrame(Ds18b20.DS18X20_READ, ids[i],
+                    Ds18b20.SCRATCHPAD_SIZE);
+        }
+        mConvertFrame = mOneWire.oneWireFrame(Ds18b20.DS18X20_CONVERT_T, 0, 0);
+    }
+
+    /**
+     * Returns the OneWire IDs of the sensors, in the order of the readings.
+     */
+    public long[] getOneWireIds() {
+        return mOneWireIds.clone();
+    }
+
+    /**
+     * Returns the health of a sensor, to inspect it or to tune its retry policy.
+     *
+     * @param index index of the sensor in {@link #getOneWireIds()}.
+     */
+    public DeviceHealth getHealth(int index) {
+        return mHealth[index];
+    }
+
+    /**
+     * Returns the counters and latency histograms of the bus.
+     */
+    public OneWireStats getStats() {
+        return mOneWire.getStats();
+    }
+
+    /**
+     * Set the resolution of the temperature conversion on all sensors.
+     *
+     * @param resolution the resolution in bits, one of the {@code Ds18b20.RESOLUTION_*}
+     *                   constants.
+     * @throws IOException
+     * @see Ds18b20#setResolution(int)
+     */
+    public void setResolution(final int resolution) throws IOException {
+        runOnBus(new OneWireBusExecutor.Transaction<Void>() {
+            @Override
+            public Void run(OneWire oneWire) throws IOException {
+                for (long id : mOneWireIds) {
+                    Ds18b20.writeResolution(oneWire, id, mScratchpad, resolution);
+                }
+                mResolution = resolution;
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Read the current temperature of all sensors.
+     *
+     * @return the temperatures in degrees Celsius, in the order of {@link #getOneWireIds()}.
+     * @throws IOException
+     * @see #readTemperatures(float[])
+     */
+    public float[] readTemperatures() throws IOException {
+        float[] temperatures = new float[mOneWireIds.length];
+        readTemperatures(temperatures);
+        return temperatures;
+    }
+
+    /**
+     * Read the current temperature of all sensors. All sensors convert at the same time, so
+     * the whole bus takes about as long as a single sensor.
+     *
+     * @param temperatures array to fill with the temperatures in degrees Celsius, in the order
+     *                     of {@link #getOneWireIds()}. A sensor that does not answer with a
+     *                     valid result, or that is skipped because of its
+     *                     {@link #getHealth(int) health}, gets {@link Float#NaN}.
+     * @throws IOException if the bus itself fails.
+     */
+    public void readTemperatures(final float[] temperatures) throws IOException {
+        runOnBus(new OneWireBusExecutor.Transaction<Void>() {
+            @Override
+            public Void run(OneWire oneWire) throws IOException {
+                convertAll(oneWire);
+                for (int i = 0; i < mOneWireIds.length; ++i) {
+                    temperatures[i] = readResult(oneWire, i)
+                            ? Ds18b20.rawTemperatureOf(mScratchpad, 0, mResolution) / 16f
+                            : Float.NaN;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Read the current temperature of all sensors as raw values, without converting them to
+     * floating point.
+     *
+     * @param raws array to fill with the temperatures in 1/16 degrees Celsius, in the order of
+     *             {@link #getOneWireIds()}. A sensor that does not answer with a valid result,
+     *             or that is skipped because of its {@link #getHealth(int) health}, gets
+     *             {@link Ds18b20#INVALID_RAW_TEMPERATURE}.
+     * @return the number of valid temperatures.
+     * @throws IOException if the bus itself fails.
+     */
+    public int readRawTemperatures(final int[] raws) throws IOException {
+        return runOnBus(new OneWireBusExecutor.Transaction<Integer>() {
+            @Override
+            public Integer run(OneWire oneWire) throws IOException {
+                convertAll(oneWire);
+                int valid = 0;
+                for (int i = 0; i < mOneWireIds.length; ++i) {
+                    if (readResult(oneWire, i)) {
+                        raws[i] = Ds18b20.rawTemperatureOf(mScratchpad, 0, mResolution);
+                        valid++;
+                    } else {
+                        raws[i] = Ds18b20.INVALID_RAW_TEMPERATURE;
+                    }
+                }
+                return valid;
+            }
+        });
+    }
+
+    /**
+     * Set the alarm thresholds of one sensor.
+     *
+     * @param id   OneWire ID of the sensor.
+     * @param low  low threshold in whole degrees Celsius.
+     * @param high high threshold in whole degrees Celsius.
+     * @throws IOException
+     * @see Ds18b20#setAlarmThresholds(int, int)
+     */
+    public void setAlarmThresholds(final long id, final int low, final int high)
+            throws IOException {
+        runOnBus(new OneWireBusExecutor.Transaction<Void>() {
+            @Override
+            public Void run(OneWire oneWire) throws IOException {
+                Ds18b20.writeAlarmThresholds(oneWire, id, mScratchpad, low, high);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Read the current temperature of the sensors of this sampler that are outside of their
+     * alarm thresholds only. All sensors convert at the same time and an alarm search then
+     * finds the ones to read, so sensors within their thresholds cost no bus time beyond the
+     * conversion.
+     *
+     * @param ids          array to fill with the OneWire IDs of the alarming sensors. It must be
+     *                     as long as {@link #getOneWireIds()}.
+     * @param temperatures array to fill with the temperatures in degrees Celsius of the
+     *                     alarming sensors, in the order of ids. A sensor that does not answer
+     *                     with a valid result gets {@link Float#NaN}.
+     * @return the number of alarming sensors.
+     * @throws IOException if the bus itself fails.
+     */
+    public int readAlarmTemperatures(final long[] ids, final float[] temperatures)
+            throws IOException {
+        return runOnBus(new OneWireBusExecutor.Transaction<Integer>() {
+            @Override
+            public Integer run(OneWire oneWire) throws IOException {
+                convertAll(oneWire);
+                int count = 0;
+                long id;
+                mAlarmSearch.restart();
+                while (count < ids.length && (id = oneWire.searchNext(mAlarmSearch)) != 0) {
+                    int index = indexOf(id);
+                    if (index < 0) {
+                        // Not one of the sensors of this sampler.
+                        continue;
+                    }
+                    ids[count] = id;
+                    temperatures[count] = readResult(oneWire, index)
+                            ? Ds18b20.rawTemperatureOf(mScratchpad, 0, mResolution) / 16f
+                            : Float.NaN;
+                    count++;
+                }
+                return count;
+            }
+        });
+    }
+
+    // SKIP_ROM addresses every sensor with a single CONVERT_T.
+    private void convertAll(OneWire oneWire) throws IOException {
+        long start = oneWire.getClock().nanoTime();
+        oneWire.oneWireCommand(mConvertFrame);
+        Ds18b20.waitForConversion(oneWire, mResolution, start);
+    }
+
+    // Run a transaction on the bus. A bus shared through the registry is only used from its
+    // executor, so that the transaction does not interleave with those of other drivers.
+    private <T> T runOnBus(OneWireBusExecutor.Transaction<T> transaction) throws IOException {
+        if (mRegistry == null) {
+            return transaction.run(mOneWire);
+        }
+        return mRegistry.getExecutor(mOneWire).runAndWait(transaction);
+    }
+
+    private int indexOf(long id) {
+        for (int i = 0; i < mOneWireIds.length; ++i) {
+            if (mOneWireIds[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Read the scratchpad of a sensor unless its health says to skip it, and record the outcome.
+    private boolean readResult(OneWire oneWire, int index) throws IOException {
+        DeviceHealth health = mHealth[index];
+        long nowMillis = oneWire.getClock().nanoTime() / 1000000;
+        if (!health.isAvailable(nowMillis)) {
+            return false;
+        }
+        if (!oneWire.oneWireCheckedTransaction(mReadFrames[index], mScratchpad, 0,
+                health.getMaxRetries())) {
+            health.recordFailure(nowMillis);
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "Invalid reading from " + Long.toHexString(mOneWireIds[index]));
+            }
+            return false;
+        }
+        health.recordSuccess(nowMillis);
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mRegistry == null) {
+            mOneWire.close();
+        } else if (!mReleased) {
+            mReleased = true;
+            mRegistry.release(mOneWire);
+        }
+    }
+}
@@ -17,6 +17,8 @@
 package com.google.android.things.contrib.driver.onewire;
 
 import android.hardware.Sensor;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
 
 import com.google.android.things.userdriver.UserDriverManager;
 import com.google.android.things.userdriver.sensor.UserSensor;
@@ -24,7 +26,16 @@ import com.google.android.things.userdriver.sensor.UserSensorDriver;
 import com.google.android.things.userdriver.sensor.UserSensorReading;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class Ds18b20SensorDriver implements AutoCloseable {
     private static final String TAG = "Ds18b20SensorDriver";
@@ -35,6 +46,8 @@ public class Ds18b20SensorDriver implements AutoCloseable {
     private static final String DRIVER_NAME = "DS18B20";
     private static final int DRIVER_MIN_DELAY_US = 10 * 1000 * 1000;
     private static final int DRIVER_MAX_DELAY_US = 20 * 1000 * 1000;
+    // Samples older than this are not returned by read(), which reports no data instead.
+    private static final long MAX_SAMPLE_AGE_NS = 2L * DRIVER_MIN_DELAY_US * 1000;
 
     private String mUart;
     private long mId;
@@ -42,6 +55,12 @@ public class Ds18b20SensorDriver implements AutoCloseable {
 
     private TemperatureUserDriver mTemperatureUserDriver;
 
+    // Scans the bus in the background while the bus watcher runs.
+    private ScheduledThreadPoolExecutor mWatcher;
+    // Sorted ROM IDs of the sensors the bus watcher registered, and their drivers.
+    private long[] mBusIds = new long[0];
+    private final Map<Long, TemperatureUserDriver> mBusDrivers = new HashMap<>();
+
     /**
      * Create a new Ds18b20 sensor driver connected on the given UART.
      * The driver emits {@link android.hardware.Sensor} with temperature data when
@@ -65,6 +84,7 @@ public class Ds18b20SensorDriver implements AutoCloseable {
      */
     public Ds18b20SensorDriver(String uart, long id) throws IOException {
         mUart = uart;
+        mId = id;
     }
 
 
@@ -75,30 +95,221 @@ public class Ds18b20SensorDriver implements AutoCloseable {
     @Override
     public void close() throws IOException {
         unregisterTemperatureSensor();
+        stopBusWatcher();
+    }
+
+    /**
+     * Returns the UUID of the {@link UserSensor} of the sensor with the given ROM ID. It is
+     * derived from the ROM ID, so it stays the same across bus scans and restarts.
+     *
+     * @param id OneWire ID of the sensor.
+     */
+    public static UUID uuidOf(long id) {
+        return UUID.nameUUIDFromBytes(ByteBuffer.allocate(8).putLong(id).array());
     }
 
     /**
      * Register a {@link UserSensor} that pipes temperature readings into the Android SensorManager.
+     * If the bus watcher registered the same sensor, its {@link UserSensor} is replaced by this
+     * one.
      * @see #unregisterTemperatureSensor()
      */
-    public void registerTemperatureSensor() {
+    public synchronized void registerTemperatureSensor() {
         if (mTemperatureUserDriver == null) {
-            mTemperatureUserDriver = new TemperatureUserDriver();
-            UserDriverManager.getInstance().registerSensor(mTemperatureUserDriver.getUserSensor());
+            if (mBusDrivers.containsKey(mId)) {
+                unregisterBusSensor(mId);
+                mBusIds = withoutId(mBusIds, mId);
+            }
+            mTemperatureUserDriver = new TemperatureUserDriver(mId);
+            registerUserSensor(mTemperatureUserDriver);
         }
     }
 
     /**
-     * Unregister the temperature {@link UserSensor}.
+     * Unregister the temperature {@link UserSensor}. A running bus watcher registers the sensor
+     * again on its next scan.
      */
-    public void unregisterTemperatureSensor() {
+    public synchronized void unregisterTemperatureSensor() {
         if (mTemperatureUserDriver != null) {
-            UserDriverManager.getInstance().unregisterSensor(mTemperatureUserDriver.getUserSensor());
+            unregisterUserSensor(mTemperatureUserDriver);
+            mTemperatureUserDriver.closeDevice();
             mTemperatureUserDriver = null;
         }
     }
 
-    private class TemperatureUserDriver implements UserSensorDriver {
+    @VisibleForTesting
+    /*package*/ void registerUserSensor(TemperatureUserDriver driver) {
+        UserDriverManager.getInstance().registerSensor(driver.getUserSensor());
+    }
+
+    @VisibleForTesting
+    /*package*/ void unregisterUserSensor(TemperatureUserDriver driver) {
+        UserDriverManager.getInstance().unregisterSensor(driver.getUserSensor());
+    }
+
+    /**
+     * Register one {@link UserSensor} per DS18B20 on the UART and keep them in step with the
+     * bus: a low priority background thread searches the bus periodically, registers the
+     * sensors that appeared and unregisters those that are gone. Each sensor has the UUID
+     * returned by {@link #uuidOf(long)}. A sensor registered through
+     * {@link #registerTemperatureSensor()} keeps its own {@link UserSensor} and is skipped.
+     *
+     * @param scanPeriodMillis time between the end of a bus scan and the start of the next.
+     * @see #stopBusWatcher()
+     */
+    public synchronized void startBusWatcher(long scanPeriodMillis) {
+        if (scanPeriodMillis <= 0) {
+            throw new IllegalArgumentException("Invalid scan period: " + scanPeriodMillis);
+        }
+        if (mWatcher != null) {
+            return;
+        }
+        mWatcher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG + " watcher");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        mWatcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    updateBusSensors(scanBus());
+                } catch (InterruptedIOException e) {
+                    // The watcher was stopped.
+                } catch (IOException e) {
+                    // Keep the sensors as they are until a scan succeeds.
+                    Log.w(TAG, "Unable to scan the bus", e);
+                }
+            }
+        }, 0, scanPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop watching the bus and unregister the sensors the bus watcher registered.
+     */
+    public synchronized void stopBusWatcher() {
+        if (mWatcher != null) {
+            mWatcher.shutdownNow();
+            mWatcher = null;
+        }
+        for (long id : mBusIds) {
+            unregisterBusSensor(id);
+        }
+        mBusIds = new long[0];
+    }
+
+    // Search the bus one pass at a time through its executor, so that the readings of the
+    // registered sensors run between the passes. Returns the sorted IDs found.
+    @VisibleForTesting
+    /*package*/ long[] scanBus() throws IOException {
+        OneWireRegistry registry = OneWireRegistry.getInstance();
+        OneWire oneWire = registry.acquire(mUart);
+        try {
+            OneWireBusExecutor executor = registry.getExecutor(oneWire);
+            boolean present = executor.submit(new OneWireBusExecutor.Transaction<Boolean>() {
+                @Override
+                public Boolean run(OneWire oneWire) throws IOException {
+                    return oneWire.resetPresence();
+                }
+            }).get();
+            if (!present) {
+                // Every sensor was unplugged.
+                return new long[0];
+            }
+            final RomSearch search = new RomSearch(Ds18b20.FAMILY_CODE);
+            long[] ids = new long[8];
+            int count = 0;
+            while (!search.isDone()) {
+                long id = executor.submit(new OneWireBusExecutor.Transaction<Long>() {
+                    @Override
+                    public Long run(OneWire oneWire) throws IOException {
+                        return oneWire.searchNext(search);
+                    }
+                }).get();
+                if (id != 0) {
+                    if (count == ids.length) {
+                        ids = Arrays.copyOf(ids, count * 2);
+                    }
+                    ids[count++] = id;
+                }
+            }
+            ids = Arrays.copyOf(ids, count);
+            Arrays.sort(ids);
+            return ids;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted scanning the bus.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            registry.release(oneWire);
+        }
+    }
+
+    // Walk the sorted known and found IDs together: IDs only found appeared, IDs only known
+    // are gone.
+    private synchronized void updateBusSensors(long[] found) {
+        if (mWatcher == null) {
+            // Stopped while scanning.
+            return;
+        }
+        if (mTemperatureUserDriver != null) {
+            // Registered explicitly, so it already has a UserSensor.
+            found = withoutId(found, mTemperatureUserDriver.getSensorId());
+        }
+        long[] known = mBusIds;
+        int i = 0;
+        int j = 0;
+        while (i < known.length || j < found.length) {
+            if (j == found.length || (i < known.length && known[i] < found[j])) {
+                Log.i(TAG, "Sensor removed: " + Long.toHexString(known[i]));
+                unregisterBusSensor(known[i++]);
+            } else if (i == known.length || found[j] < known[i]) {
+                Log.i(TAG, "Sensor added: " + Long.toHexString(found[j]));
+                registerBusSensor(found[j++]);
+            } else {
+                i++;
+                j++;
+            }
+        }
+        mBusIds = found;
+    }
+
+    // Returns the sorted ids without the given one.
+    private static long[] withoutId(long[] ids, long id) {
+        int index = id != 0 ? Arrays.binarySearch(ids, id) : -1;
+        if (index < 0) {
+            return ids;
+        }
+        long[] rest = new long[ids.length - 1];
+        System.arraycopy(ids, 0, rest, 0, index);
+        System.arraycopy(ids, index + 1, rest, index, rest.length - index);
+        return rest;
+    }
+
+    private void registerBusSensor(long id) {
+        TemperatureUserDriver driver = new TemperatureUserDriver(id);
+        registerUserSensor(driver);
+        mBusDrivers.put(id, driver);
+    }
+
+    private void unregisterBusSensor(long id) {
+        TemperatureUserDriver driver = mBusDrivers.remove(id);
+        if (driver != null) {
+            unregisterUserSensor(driver);
+            driver.closeDevice();
+        }
+    }
+
+    @VisibleForTesting
+    /*package*/ class TemperatureUserDriver implements UserSensorDriver {
         // DRIVER parameters
         // documented at https://source.android.com/devices/sensors/hal-interface.html#sensor_t
         private static final float DRIVER_MAX_RANGE = Ds18b20.MAX_TEMP_C;
@@ -107,14 +318,43 @@ public class Ds18b20SensorDriver implements AutoCloseable {
         private static final int DRIVER_VERSION = 1;
         private static final String DRIVER_REQUIRED_PERMISSION = "";
 
+        // OneWire ID of the sensor, 0 until the first sensor on the UART is found.
+        private long mSensorId;
+        private final UUID mUuid;
         private boolean mEnabled;
         private UserSensor mUserSensor;
+        // Kept open between readings; the UART itself is shared through OneWireRegistry.
+        // Guarded by mDeviceLock rather than this, so that read() does not wait for the ROM
+        // search that opening the device may take.
+        private Ds18b20 mDevice;
+        private final Object mDeviceLock = new Object();
+        // Samples the sensor in the background while the driver is enabled.
+        private ScheduledThreadPoolExecutor mSampler;
+        // Latest sample and the System.nanoTime() it was taken at, 0 if there is none.
+        private float mSample;
+        private long mSampleTimeNs;
+        // Backs off from a failing sensor so that it does not keep the shared bus busy.
+        private final DeviceHealth mHealth = new DeviceHealth();
+
+        TemperatureUserDriver(long id) {
+            mSensorId = id;
+            mUuid = id != 0 ? uuidOf(id) : UUID.randomUUID();
+        }
+
+        synchronized long getSensorId() {
+            return mSensorId;
+        }
+
+        UUID getUuid() {
+            return mUuid;
+        }
 
         private UserSensor getUserSensor() {
             if (mUserSensor == null) {
                 mUserSensor = new UserSensor.Builder()
                         .setType(Sensor.TYPE_AMBIENT_TEMPERATURE)
-                        .setName(DRIVER_NAME)
+                        .setName(mSensorId != 0 ? DRIVER_NAME + " " + Long.toHexString(mSensorId)
+                                : DRIVER_NAME)
                         .setVendor(DRIVER_VENDOR)
                         .setVersion(DRIVER_VERSION)
                         .setMaxRange(DRIVER_MAX_RANGE)
@@ -122,7 +362,7 @@ public class Ds18b20SensorDriver implements AutoCloseable {
                         .setPower(DRIVER_POWER)
                         .setMinDelay(DRIVER_MIN_DELAY_US)
                         .setMaxDelay(DRIVER_MAX_DELAY_US)
-                        .setUuid(UUID.randomUUID())
+                        .setUuid(mUuid)
                         .setDriver(this)
                         .build();
             }
@@ -130,18 +370,135 @@ public class Ds18b20SensorDriver implements AutoCloseable {
         }
 
         @Override
-        public UserSensorReading read() throws IOException {
-            Ds18b20 device = new Ds18b20(mUart, mId);
+        public synchronized UserSensorReading read() throws IOException {
+            if (mSampleTimeNs == 0 || System.nanoTime() - mSampleTimeNs > MAX_SAMPLE_AGE_NS) {
+                // Reading the sensor here would block the caller for a whole conversion, so
+                // report no data until the sampler has one: it did not run yet or the sensor
+                // is failing.
+                throw new IOException("No recent temperature sample");
+            }
+            return new UserSensorReading(new float[]{mSample});
+        }
+
+        // Read the sensor and remember the result as the latest sample.
+        private float sample() throws IOException {
+            long nowMillis = System.nanoTime() / 1000000;
+            if (!mHealth.isAvailable(nowMillis)) {
+                throw new IOException("Sensor is backing off after failed readings");
+            }
+            float temperature;
             try {
-                return new UserSensorReading(new float[]{device.readTemperature()});
-            } finally {
-                device.close();
+                temperature = readTemperature();
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                mHealth.recordFailure(nowMillis);
+                throw e;
+            }
+            mHealth.recordSuccess(nowMillis);
+            synchronized (this) {
+                mSample = temperature;
+                mSampleTimeNs = System.nanoTime();
+            }
+            return temperature;
+        }
+
+        private float readTemperature() throws IOException {
+            Ds18b20 device = getDevice();
+            // Other drivers may share the UART, so go through the executor of the bus.
+            OneWireBusExecutor executor =
+                    OneWireRegistry.getInstance().getExecutor(device.mOneWire);
+            try {
+                return device.readTemperature(executor).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted reading temperature.");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        private Ds18b20 getDevice() throws IOException {
+            synchronized (mDeviceLock) {
+                if (mDevice == null) {
+                    long id = getSensorId();
+                    mDevice = id != 0 ? new Ds18b20(mUart, id) : new Ds18b20(mUart);
+                    // Remember the discovered ID so that the ROM search runs only once.
+                    synchronized (this) {
+                        mSensorId = mDevice.getOneWireId();
+                    }
+                }
+                return mDevice;
+            }
+        }
+
+        private void closeDevice() {
+            synchronized (this) {
+                stopSampling();
+            }
+            synchronized (mDeviceLock) {
+                if (mDevice != null) {
+                    try {
+                        mDevice.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to close device", e);
+                    }
+                    mDevice = null;
+                }
             }
         }
 
         @Override
-        public void setEnabled(boolean enabled) throws IOException {
+        public synchronized void setEnabled(boolean enabled) throws IOException {
             mEnabled = enabled;
+            if (enabled) {
+                startSampling();
+            } else {
+                stopSampling();
+            }
+        }
+
+        // The framework does not pass the requested rate to user drivers, so sample at the
+        // fastest rate the sensor advertises.
+        private void startSampling() {
+            if (mSampler != null) {
+                return;
+            }
+            mSampler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mSampler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mHealth.isAvailable(System.nanoTime() / 1000000)) {
+                        // Skip the failing sensor until its backoff expires.
+                        return;
+                    }
+                    try {
+                        sample();
+                    } catch (InterruptedIOException e) {
+                        // Sampling was stopped.
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to sample temperature", e);
+                    }
+                }
+            }, 0, DRIVER_MIN_DELAY_US, TimeUnit.MICROSECONDS);
+        }
+
+        private void stopSampling() {
+            if (mSampler != null) {
+                mSampler.shutdownNow();
+                mSampler = null;
+            }
+            mSampleTimeNs = 0;
         }
 
         private boolean isEnabled() {
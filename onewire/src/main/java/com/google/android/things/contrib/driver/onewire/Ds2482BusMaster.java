@@ -0,0 +1,270 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.google.android.things.pio.I2cDevice;
+import com.dalsemi.onewire.utils.CRC8;
+import com.google.android.things.pio.PeripheralManager;
+
+import java.io.IOException;
+
+/**
+ * 1-Wire bus master on a DS2482-100 or DS2482-800 I2C bridge. The bridge generates resets,
+ * bit slots and whole bytes in hardware, so a byte costs one I2C command and a status read
+ * instead of a burst of UART slots.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class Ds2482BusMaster implements OneWireBusMaster {
+    private static final String TAG = Ds2482BusMaster.class.getSimpleName();
+
+    /**
+     * I2C address of the bridge with AD0 and AD1 low.
+     */
+    public static final int DEFAULT_I2C_ADDRESS = 0x18;
+
+    // Commands.
+    static final int CMD_DEVICE_RESET = 0xf0;
+    static final int CMD_SET_READ_POINTER = 0xe1;
+    static final int CMD_WRITE_CONFIG = 0xd2;
+    static final int CMD_CHANNEL_SELECT = 0xc3;
+    static final int CMD_1WIRE_RESET = 0xb4;
+    static final int CMD_1WIRE_SINGLE_BIT = 0x87;
+    static final int CMD_1WIRE_WRITE_BYTE = 0xa5;
+    static final int CMD_1WIRE_READ_BYTE = 0x96;
+    static final int CMD_1WIRE_TRIPLET = 0x78;
+
+    // Read pointer codes.
+    static final int REG_STATUS = 0xf0;
+    static final int REG_DATA = 0xe1;
+    static final int REG_CONFIG = 0xc3;
+
+    // Status register bits.
+    static final int STATUS_1WB = 0x01;
+    static final int STATUS_PPD = 0x02;
+    static final int STATUS_SD = 0x04;
+    static final int STATUS_RST = 0x10;
+    static final int STATUS_SBR = 0x20;
+    static final int STATUS_TSB = 0x40;
+    static final int STATUS_DIR = 0x80;
+
+    // Configuration register bits.
+    static final int CONFIG_APU = 0x01;
+
+    // Channel select codes of the DS2482-800 and the values the register reads back.
+    private static final int[] CHANNEL_CODES = {0xf0, 0xe1, 0xd2, 0xc3, 0xb4, 0xa5, 0x96, 0x87};
+    private static final int[] CHANNEL_READBACK = {0xb8, 0xb1, 0xaa, 0xa3, 0x9c, 0x95, 0x8e, 0x87};
+
+    // Status reads before a 1-Wire command is considered stuck. A reset, the longest
+    // command, takes about 1.2 ms, or a handful of reads at 100 kHz.
+    static final int MAX_BUSY_POLLS = 100;
+
+    // Reusable buffers so that bus I/O does not allocate.
+    private final byte[] mCommand = new byte[2];
+    private final byte[] mStatus = new byte[1];
+
+    I2cDevice mI2cDevice;
+    private OneWire mOneWire;
+
+    /**
+     * Create a bus master on a bridge at the default address of the given I2C bus.
+     *
+     * @param i2cBus I2C bus the bridge is connected to.
+     * @throws IOException
+     */
+    public Ds2482BusMaster(String i2cBus) throws IOException {
+        this(i2cBus, DEFAULT_I2C_ADDRESS);
+    }
+
+    /**
+     * Create a bus master on a bridge of the given I2C bus.
+     *
+     * @param i2cBus  I2C bus the bridge is connected to.
+     * @param address I2C address of the bridge, from 0x18 to 0x1b for the DS2482-100.
+     * @throws IOException
+     */
+    public Ds2482BusMaster(String i2cBus, int address) throws IOException {
+        this(PeripheralManager.getInstance().openI2cDevice(i2cBus, address));
+    }
+
+    /**
+     * Create a bus master on the given I2C device.
+     *
+     * @param device I2C device of the bridge.
+     * @throws IOException
+     */
+    @VisibleForTesting
+    /*package*/ Ds2482BusMaster(I2cDevice device) throws IOException {
+        mI2cDevice = device;
+        try {
+            command(CMD_DEVICE_RESET);
+            if ((readStatus() & STATUS_RST) == 0) {
+                throw new IOException("DS2482 did not reset");
+            }
+            // Active pullup shortens the rising edges of a bus with many devices.
+            writeConfig(CONFIG_APU);
+        } catch (IOException | RuntimeException e) {
+            try {
+                close();
+            } catch (IOException | RuntimeException ignored) {
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void attach(OneWire oneWire) {
+        mOneWire = oneWire;
+    }
+
+    /**
+     * Select the 1-Wire channel of a DS2482-800 that the following operations use.
+     *
+     * @param channel channel from 0 to 7.
+     * @throws IOException
+     */
+    public void selectChannel(int channel) throws IOException {
+        if (channel < 0 || channel >= CHANNEL_CODES.length) {
+            throw new IllegalArgumentException("Invalid channel: " + channel);
+        }
+        command(CMD_CHANNEL_SELECT, CHANNEL_CODES[channel]);
+        // The read pointer is left on the channel selection register.
+        if ((read() & 0xff) != CHANNEL_READBACK[channel]) {
+            throw new IOException("DS2482 channel " + channel + " not selected");
+        }
+    }
+
+    @Override
+    public boolean reset() throws IOException {
+        command(CMD_1WIRE_RESET);
+        int status = waitIdle();
+        if ((status & STATUS_SD) != 0) {
+            throw new IOException("1-Wire short detected");
+        }
+        return (status & STATUS_PPD) != 0;
+    }
+
+    @Override
+    public boolean touchBit(boolean bit) throws IOException {
+        command(CMD_1WIRE_SINGLE_BIT, bit ? 0x80 : 0x00);
+        return (waitIdle() & STATUS_SBR) != 0;
+    }
+
+    @Override
+    public void touchBytes(byte[] data, int offset, int length) throws IOException {
+        touchBytes(data, offset, length, null, 0);
+    }
+
+    @Override
+    public void touchBytes(byte[] data, int offset, int length, CRC8.Accumulator crc,
+            int crcStart) throws IOException {
+        for (int i = offset; i < offset + length; ++i) {
+            if (data[i] == (byte) 0xff) {
+                // Writing ones is reading: the bridge samples each slot.
+                command(CMD_1WIRE_READ_BYTE);
+                waitIdle();
+                command(CMD_SET_READ_POINTER, REG_DATA);
+                data[i] = read();
+            } else {
+                // Devices cannot pull down the slots of a 0 and only listen during a write.
+                command(CMD_1WIRE_WRITE_BYTE, data[i]);
+                waitIdle();
+            }
+            if (crc != null && i >= crcStart) {
+                crc.update(data[i]);
+            }
+        }
+    }
+
+    @Override
+    public int triplet(boolean direction) throws IOException {
+        command(CMD_1WIRE_TRIPLET, direction ? 0x80 : 0x00);
+        int status = waitIdle();
+        return ((status & STATUS_SBR) != 0 ? TRIPLET_BIT : 0)
+                | ((status & STATUS_TSB) != 0 ? TRIPLET_COMPLEMENT : 0)
+                | ((status & STATUS_DIR) != 0 ? TRIPLET_DIRECTION : 0);
+    }
+
+    private void writeConfig(int config) throws IOException {
+        // The upper nibble is the complement of the lower one.
+        command(CMD_WRITE_CONFIG, ((~config & 0x0f) << 4) | (config & 0x0f));
+        // The read pointer is left on the configuration register, which reads back the lower
+        // nibble.
+        if ((read() & 0x0f) != config) {
+            throw new IOException("DS2482 configuration not written");
+        }
+    }
+
+    // Poll the status register, where 1-Wire commands leave the read pointer, until the
+    // command is done.
+    private int waitIdle() throws IOException {
+        for (int poll = 0; poll < MAX_BUSY_POLLS; ++poll) {
+            int status = read() & 0xff;
+            if ((status & STATUS_1WB) == 0) {
+                return status;
+            }
+        }
+        if (mOneWire != null) {
+            mOneWire.getStats().increment(OneWireStats.COUNTER_TIMEOUTS);
+        }
+        throw new IOException("DS2482 busy timeout");
+    }
+
+    private int readStatus() throws IOException {
+        command(CMD_SET_READ_POINTER, REG_STATUS);
+        return read() & 0xff;
+    }
+
+    private void command(int command) throws IOException {
+        checkOpen();
+        mCommand[0] = (byte) command;
+        mI2cDevice.write(mCommand, 1);
+    }
+
+    private void command(int command, int parameter) throws IOException {
+        checkOpen();
+        mCommand[0] = (byte) command;
+        mCommand[1] = (byte) parameter;
+        mI2cDevice.write(mCommand, 2);
+    }
+
+    private byte read() throws IOException {
+        checkOpen();
+        mI2cDevice.read(mStatus, 1);
+        return mStatus[0];
+    }
+
+    private void checkOpen() {
+        if (mI2cDevice == null) {
+            throw new IllegalStateException("I2C device is not open");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mI2cDevice != null) {
+            try {
+                mI2cDevice.close();
+                mI2cDevice = null;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close I2C device", e);
+            }
+        }
+    }
+}
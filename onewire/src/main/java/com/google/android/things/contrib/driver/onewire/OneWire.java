@@ -16,14 +16,17 @@
 
 package com.google.android.things.contrib.driver.onewire;
 
+import android.os.Handler;
 import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
+import com.dalsemi.onewire.utils.CRC8;
 import com.google.android.things.pio.PeripheralManager;
 import com.google.android.things.pio.UartDevice;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class OneWire implements AutoCloseable {
     private static final String TAG = OneWire.class.getSimpleName();
@@ -31,11 +34,20 @@ public class OneWire implements AutoCloseable {
     static final byte OW_MATCH_ROM = 0x55;
     static final byte OW_SKIP_ROM = (byte) 0xcc;
     static final byte OW_SEARCH_ROM = (byte) 0xf0;
-    static final int OW_SEARCH_FIRST = -1;
+    static final byte OW_ALARM_SEARCH = (byte) 0xec;
     static final int OW_ID_SIZE = 8;
+    // Largest number of bytes sent as one burst of bit slots.
+    static final int MAX_BURST_BYTES = 32;
 
+    // Reusable buffer so that bus I/O does not allocate.
+    private final byte[] mFrame = new byte[MAX_BURST_BYTES];
+    private final CRC8.Accumulator mCrc = new CRC8.Accumulator();
+    private final OneWireStats mStats = new OneWireStats();
+    // Set to record every UART operation.
+    private volatile OneWireTrace mTrace;
+    private volatile OneWireClock mClock = OneWireClock.SYSTEM;
 
-    UartDevice mUartDevice;
+    OneWireBusMaster mMaster;
 
     /**
      * Create a new OneWire sensor driver connected on the given UART.
@@ -55,184 +67,537 @@ public class OneWire implements AutoCloseable {
      */
     @VisibleForTesting
     /*package*/ OneWire(UartDevice device) throws IOException {
-        mUartDevice = device;
-
-        try {
-            mUartDevice.setDataSize(8);
-            mUartDevice.setParity(UartDevice.PARITY_NONE);
-            mUartDevice.setStopBits(1);
-            mUartDevice.setHardwareFlowControl(UartDevice.HW_FLOW_CONTROL_NONE);
-            // This hangs 'close' test if there is no data to read.
-            // reset();
-        } catch (IOException | RuntimeException e) {
-            try {
-                close();
-            } catch (IOException | RuntimeException ignored) {
-            }
-            throw e;
+        this(new UartBusMaster(device));
+    }
+
+    /**
+     * Create a new OneWire driver on the given bus master, e.g. a {@link Ds2482BusMaster}.
+     * Closing the driver closes the bus master.
+     *
+     * @param master bus master that generates the resets and time slots.
+     */
+    public OneWire(OneWireBusMaster master) {
+        mMaster = master;
+        mMaster.attach(this);
+    }
+
+    /**
+     * Returns the counters and latency histograms of this bus.
+     */
+    public OneWireStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Record every UART operation of this bus in a trace, e.g. to dump the operations that
+     * led to a failure. Only {@link UartBusMaster} records operations.
+     *
+     * @param trace trace to record to, or null to stop recording.
+     */
+    public void setTrace(OneWireTrace trace) {
+        mTrace = trace;
+    }
+
+    /**
+     * Returns the trace the bus records to, or null.
+     */
+    public OneWireTrace getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * Set the clock that timestamps and waits of this bus and its drivers go through.
+     *
+     * @param clock clock to use, {@link OneWireClock#SYSTEM} by default.
+     */
+    public void setClock(OneWireClock clock) {
+        if (clock == null) {
+            throw new IllegalArgumentException("Clock must not be null");
         }
+        mClock = clock;
+    }
+
+    /**
+     * Returns the clock of this bus.
+     */
+    public OneWireClock getClock() {
+        return mClock;
     }
 
     protected boolean oneWireBit(boolean b) throws IOException {
-        if (b) {
-            /* Write 1 */
-            uartWriteByte(0xff);
-        } else {
-            /* Write 0 */
-            uartWriteByte(0x00);
-        }
+        mStats.increment(OneWireStats.COUNTER_BIT_SLOTS);
+        return master().touchBit(b);
+    }
 
-        /* Read */
-        int c = uartReadByte();
-        b = ((c & 0xff) == 0xff);
-        return b;
+    // Run the read, read complement and write direction slots of one ROM search bit.
+    int oneWireTriplet(boolean direction) throws IOException {
+        mStats.add(OneWireStats.COUNTER_BIT_SLOTS, 3);
+        return master().triplet(direction);
     }
 
     protected byte oneWireWriteByte(byte b) throws IOException {
-        Log.i(TAG, "oneWireWriteByte start: " + Integer.toHexString(b));
-
-        int i = 8;
-        do {
-            boolean j = oneWireBit((b & 1) != 0);
-            b >>= 1;
-            b &= 0x7f;
-            if (j) {
-                b |= 0x80;
-            }
-        } while (--i != 0);
-        Log.i(TAG, "oneWireWriteByte done: " + Integer.toHexString(b));
-        return b;
+        mFrame[0] = b;
+        oneWireTouchBytes(mFrame, 0, 1);
+        return mFrame[0];
     }
 
     // Read bytes by writing 0xFF.
     protected byte[] oneWireReadBytes(int readCount) throws IOException {
         byte[] bytes = new byte[readCount];
-        for (int i = 0; i < readCount; ++i) {
-            bytes[i] = oneWireWriteByte((byte) 0xff);
-        }
+        oneWireReadBytes(bytes, 0, readCount);
         return bytes;
     }
 
+    /**
+     * Read bytes from the bus into the given array.
+     *
+     * @param dst       array to fill.
+     * @param offset    offset of the first byte in the array.
+     * @param readCount number of bytes to read.
+     * @throws IOException
+     */
+    void oneWireReadBytes(byte[] dst, int offset, int readCount) throws IOException {
+        Arrays.fill(dst, offset, offset + readCount, (byte) 0xff);
+        oneWireTouchBytes(dst, offset, readCount);
+    }
+
+    /**
+     * Read bytes from the bus into the given buffer, starting at its current position.
+     *
+     * @param dst       buffer to fill. Its position is advanced by readCount.
+     * @param readCount number of bytes to read.
+     * @throws IOException
+     */
+    void oneWireReadBytes(ByteBuffer dst, int readCount) throws IOException {
+        if (dst.remaining() < readCount) {
+            throw new IllegalArgumentException("Buffer too small: " + dst.remaining());
+        }
+        if (dst.hasArray()) {
+            oneWireReadBytes(dst.array(), dst.arrayOffset() + dst.position(), readCount);
+            dst.position(dst.position() + readCount);
+            return;
+        }
+        while (readCount > 0) {
+            int count = Math.min(readCount, MAX_BURST_BYTES);
+            oneWireReadBytes(mFrame, 0, count);
+            dst.put(mFrame, 0, count);
+            readCount -= count;
+        }
+    }
+
+    // Send the bytes as bit slots and replace them with the bytes read back.
+    void oneWireTouchBytes(byte[] data, int offset, int length) throws IOException {
+        oneWireTouchBytes(data, offset, length, null, 0);
+    }
+
+    // Same, adding every byte read back from index crcStart on to the CRC8 as it is decoded.
+    private void oneWireTouchBytes(byte[] data, int offset, int length, CRC8.Accumulator crc,
+            int crcStart) throws IOException {
+        mStats.add(OneWireStats.COUNTER_BYTES, length);
+        mStats.add(OneWireStats.COUNTER_BIT_SLOTS, length * 8);
+        master().touchBytes(data, offset, length, crc, crcStart);
+    }
+
     void oneWireCommand(int command, long id) throws IOException {
+        oneWireTransaction(command, id, null, 0, 0);
+    }
+
+    /**
+     * Reset the bus and run a whole transaction as a single burst of bit slots: the ROM select
+     * (MATCH_ROM with the id, or SKIP_ROM if the id is 0), the function command and then
+     * readCount read slots.
+     *
+     * @param command   function command to send to the device.
+     * @param id        OneWire ID of the device, or 0 to address all devices.
+     * @param readCount number of bytes to read after the command.
+     * @return the bytes read after the command.
+     * @throws IOException
+     */
+    byte[] oneWireTransaction(int command, long id, int readCount) throws IOException {
+        byte[] response = new byte[readCount];
+        oneWireTransaction(command, id, response, 0, readCount);
+        return response;
+    }
+
+    /**
+     * Reset the bus and run a whole transaction, reading the response into the given array.
+     *
+     * @param command   function command to send to the device.
+     * @param id        OneWire ID of the device, or 0 to address all devices.
+     * @param dst       array to fill with the bytes read after the command.
+     * @param offset    offset of the first response byte in the array.
+     * @param readCount number of bytes to read after the command.
+     * @throws IOException
+     * @see #oneWireTransaction(int, long, int)
+     */
+    void oneWireTransaction(int command, long id, byte[] dst, int offset, int readCount)
+            throws IOException {
+        oneWireTransaction(command, id, dst, offset, readCount, null);
+    }
+
+    /**
+     * Run a transaction whose response ends with the CRC8 of the bytes before it, like a
+     * scratchpad. The CRC8 is checked while the response is decoded, and the transaction runs
+     * again right away if it does not match.
+     *
+     * @param command   function command to send to the device.
+     * @param id        OneWire ID of the device, or 0 to address all devices.
+     * @param dst       array to fill with the bytes read after the command.
+     * @param offset    offset of the first response byte in the array.
+     * @param readCount number of bytes to read after the command, including the CRC8.
+     * @param retries   number of times to run the transaction again after a CRC8 mismatch.
+     * @return true if the response matches its CRC8, false if it still did not after all
+     * retries.
+     * @throws IOException if the bus itself fails.
+     */
+    boolean oneWireCheckedTransaction(int command, long id, byte[] dst, int offset,
+            int readCount, int retries) throws IOException {
+        for (int attempt = 0; attempt <= retries; ++attempt) {
+            if (attempt > 0) {
+                mStats.increment(OneWireStats.COUNTER_RETRIES);
+            }
+            mCrc.reset();
+            oneWireTransaction(command, id, dst, offset, readCount, mCrc);
+            if (mCrc.getValue() == 0) {
+                return true;
+            }
+            mStats.increment(OneWireStats.COUNTER_CRC_FAILURES);
+        }
+        return false;
+    }
+
+    private void oneWireTransaction(int command, long id, byte[] dst, int offset, int readCount,
+            CRC8.Accumulator crc) throws IOException {
+        long start = mClock.nanoTime();
+        reset();
+        int length = frameCommand(mFrame, command, id);
+        if (length + readCount > MAX_BURST_BYTES) {
+            // Response does not fit in the same burst.
+            oneWireTouchBytes(mFrame, 0, length);
+            Arrays.fill(dst, offset, offset + readCount, (byte) 0xff);
+            oneWireTouchBytes(dst, offset, readCount, crc, offset);
+        } else {
+            Arrays.fill(mFrame, length, length + readCount, (byte) 0xff);
+            oneWireTouchBytes(mFrame, 0, length + readCount, crc, length);
+            if (readCount > 0) {
+                System.arraycopy(mFrame, length, dst, offset, readCount);
+            }
+        }
+        mStats.recordLatency(OneWireStats.HISTOGRAM_TRANSACTION, mClock.nanoTime() - start);
+    }
+
+    /**
+     * Frame a transaction that is replayed for every reading, like CONVERT_T or READ to one
+     * sensor. A {@link UartBusMaster} gets the frame encoded into bit slots too, so that
+     * replaying it does no encoding work.
+     *
+     * @param command   function command to send to the device.
+     * @param id        OneWire ID of the device, or 0 to address all devices.
+     * @param readCount number of bytes to read after the command.
+     * @return the frame to pass to {@link #oneWireCommand(CommandFrame)} or
+     * {@link #oneWireCheckedTransaction(CommandFrame, byte[], int, int)}.
+     */
+    CommandFrame oneWireFrame(int command, long id, int readCount) {
+        // Framed apart from mFrame, which a transaction on another thread may be using.
+        int length = id != 0 ? OW_ID_SIZE + 2 : 2;
+        if (length + readCount > MAX_BURST_BYTES) {
+            throw new IllegalArgumentException("Frame does not fit in a burst: " + readCount);
+        }
+        byte[] bytes = new byte[length + readCount];
+        frameCommand(bytes, command, id);
+        Arrays.fill(bytes, length, bytes.length, (byte) 0xff);
+        byte[] slots = master() instanceof UartBusMaster ? UartBusMaster.encodeSlots(bytes) : null;
+        return new CommandFrame(id, bytes, length, slots);
+    }
+
+    /**
+     * Reset the bus and replay a frame without response.
+     *
+     * @param frame frame returned by {@link #oneWireFrame(int, long, int)}.
+     * @throws IOException
+     */
+    void oneWireCommand(CommandFrame frame) throws IOException {
+        oneWireTransaction(frame, null, 0, null);
+    }
+
+    /**
+     * Replay a frame whose response ends with the CRC8 of the bytes before it, running it
+     * again right away if the CRC8 does not match.
+     *
+     * @param frame   frame returned by {@link #oneWireFrame(int, long, int)}.
+     * @param dst     array to fill with the bytes read after the command.
+     * @param offset  offset of the first response byte in the array.
+     * @param retries number of times to run the transaction again after a CRC8 mismatch.
+     * @return true if the response matches its CRC8, false if it still did not after all
+     * retries.
+     * @throws IOException if the bus itself fails.
+     * @see #oneWireCheckedTransaction(int, long, byte[], int, int, int)
+     */
+    boolean oneWireCheckedTransaction(CommandFrame frame, byte[] dst, int offset, int retries)
+            throws IOException {
+        for (int attempt = 0; attempt <= retries; ++attempt) {
+            if (attempt > 0) {
+                mStats.increment(OneWireStats.COUNTER_RETRIES);
+            }
+            mCrc.reset();
+            oneWireTransaction(frame, dst, offset, mCrc);
+            if (mCrc.getValue() == 0) {
+                return true;
+            }
+            mStats.increment(OneWireStats.COUNTER_CRC_FAILURES);
+        }
+        return false;
+    }
+
+    private void oneWireTransaction(CommandFrame frame, byte[] dst, int offset,
+            CRC8.Accumulator crc) throws IOException {
+        long start = mClock.nanoTime();
+        reset();
+        OneWireBusMaster master = master();
+        int length = frame.mBytes.length;
+        int readCount = frame.getReadCount();
+        mStats.add(OneWireStats.COUNTER_BYTES, length);
+        mStats.add(OneWireStats.COUNTER_BIT_SLOTS, length * 8);
+        if (frame.mSlots != null && master instanceof UartBusMaster) {
+            ((UartBusMaster) master).touchSlots(frame.mSlots, frame.mWriteCount, dst, offset,
+                    crc);
+        } else {
+            System.arraycopy(frame.mBytes, 0, mFrame, 0, length);
+            master.touchBytes(mFrame, 0, length, crc, frame.mWriteCount);
+            if (readCount > 0) {
+                System.arraycopy(mFrame, frame.mWriteCount, dst, offset, readCount);
+            }
+        }
+        mStats.recordLatency(OneWireStats.HISTOGRAM_TRANSACTION, mClock.nanoTime() - start);
+    }
+
+    /**
+     * Reset the bus and send a command followed by data bytes as a single burst of bit slots.
+     *
+     * @param command    function command to send to the device.
+     * @param id         OneWire ID of the device, or 0 to address all devices.
+     * @param src        array with the data bytes to send after the command.
+     * @param offset     offset of the first data byte in the array.
+     * @param writeCount number of data bytes to send.
+     * @throws IOException
+     */
+    void oneWireWrite(int command, long id, byte[] src, int offset, int writeCount)
+            throws IOException {
+        long start = mClock.nanoTime();
         reset();
+        int length = frameCommand(mFrame, command, id);
+        do {
+            int count = Math.min(writeCount, MAX_BURST_BYTES - length);
+            System.arraycopy(src, offset, mFrame, length, count);
+            oneWireTouchBytes(mFrame, 0, length + count);
+            offset += count;
+            writeCount -= count;
+            length = 0;
+        } while (writeCount > 0);
+        mStats.recordLatency(OneWireStats.HISTOGRAM_TRANSACTION, mClock.nanoTime() - start);
+    }
+
+    // Put the ROM select and the command at the start of the frame, returning their length.
+    private static int frameCommand(byte[] frame, int command, long id) {
+        int length = 0;
         if (id != 0) {
-            oneWireWriteByte(OW_MATCH_ROM);
-            ByteBuffer buffer = ByteBuffer.allocate(8).putLong(id);
-            buffer.rewind();
-            while (buffer.hasRemaining()) {
-                oneWireWriteByte(buffer.get());
+            frame[length++] = OW_MATCH_ROM;
+            for (int i = OW_ID_SIZE - 1; i >= 0; --i) {
+                frame[length++] = (byte) (id >>> (i * 8));
             }
         } else {
-            oneWireWriteByte(OW_SKIP_ROM);
+            frame[length++] = OW_SKIP_ROM;
         }
-        oneWireWriteByte((byte) command);
+        frame[length++] = (byte) command;
+        return length;
     }
 
     long oneWireFindRom() throws IOException {
-        byte[] romId = new byte[8];
-        int diff = OW_SEARCH_FIRST;
-        diff = findNextRom(diff, romId);
-        long id = ByteBuffer.wrap(romId).getLong();
+        long id = searchNext(new RomSearch());
+        if (id == 0) {
+            throw new IOException("OneWire devices not found");
+        }
         return id;
     }
 
-    private int findNextRom(int diff, byte[] id) throws IOException {
-        int nextDiff = 0;
-        int bitPos = OW_ID_SIZE * 8;
-        int bytePos = 0;
-        reset();
-        oneWireWriteByte(OW_SEARCH_ROM); /* ROM search command */
-        do {
-            for (int j = 0; j < 8; ++j) {
-                // Read one bit.
-                boolean bit = oneWireBit(true);
-                // Read complement bit.
-                if (oneWireBit(true)) {
-                    if (bit) {
-                        // Read complement bit, if 1-1: data error.
-                        throw new IOException("Data Error");
-                    }
-                } else if (!bit) {
-                    if (diff > bitPos || (((id[bytePos] & 1) != 0) && diff != bitPos)) {
-                        // if 0-0: 2 devices
-                        // now true
-                        bit = true;
-                        // Next pass 0.
-                        nextDiff = bitPos;
-                    }
-                }
-                // Write one bit back.
-                oneWireBit(bit);
-                // Shift current id byte right.
-                id[bytePos] = (byte) ((id[bytePos] >> 1) & 0x7f);
-                if (bit) {
-                    // Store bit.
-                    id[bytePos] = (byte) (id[bytePos] | 0x80);
-                }
+    /**
+     * Find the ROM IDs of all the devices on the bus.
+     *
+     * @return ROM IDs in search order.
+     * @throws IOException
+     */
+    public long[] searchRoms() throws IOException {
+        return searchRoms(new RomSearch());
+    }
 
-                --bitPos;
-            }
-            // Next byte.
-            bytePos++;
-        } while (bitPos != 0);
-        // Next bit to continue search.
-        return nextDiff;
+    /**
+     * Find the ROM IDs of all the devices with the given family code.
+     *
+     * @param familyCode family code of the devices, e.g. 0x28 for DS18B20.
+     * @return ROM IDs in search order.
+     * @throws IOException
+     */
+    public long[] searchRoms(int familyCode) throws IOException {
+        return searchRoms(new RomSearch(familyCode));
     }
 
-    private void uartWriteByte(int b) throws IOException {
-        if (mUartDevice == null) {
-            throw new IllegalStateException("Uart device is not open");
+    /**
+     * Find the ROM IDs of the devices with the given family code that are in an alarm
+     * condition.
+     *
+     * @param familyCode family code of the devices, or {@link RomSearch#ANY_FAMILY}.
+     * @return ROM IDs in search order.
+     * @throws IOException
+     */
+    public long[] searchAlarms(int familyCode) throws IOException {
+        return searchRoms(new RomSearch(familyCode, true));
+    }
+
+    /**
+     * Find the ROM IDs of the remaining devices of a search.
+     *
+     * @param search search to continue.
+     * @return ROM IDs found until the search was done, in search order.
+     * @throws IOException
+     */
+    public long[] searchRoms(RomSearch search) throws IOException {
+        long[] ids = new long[8];
+        int count = 0;
+        long id;
+        while ((id = searchNext(search)) != 0) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = id;
         }
-        byte[] buffer = new byte[]{(byte) b};
-        mUartDevice.write(buffer, 1);
+        return Arrays.copyOf(ids, count);
     }
 
-    private int uartReadByte() throws IOException {
-        if (mUartDevice == null) {
-            throw new IllegalStateException("Uart device is not open");
+    /**
+     * Run one search pass to find the next device of a search. Each ROM bit is one
+     * {@link OneWireBusMaster#triplet(boolean)} of the bus master.
+     *
+     * @param search search to continue.
+     * @return ROM ID of the next device, or 0 if the search is done.
+     * @throws IOException
+     */
+    public long searchNext(RomSearch search) throws IOException {
+        if (search.isDone()) {
+            return 0;
         }
-        // Maximum amount of data to read at one time
-        final int maxCount = 1;
-        byte[] buffer = new byte[maxCount];
-        int sleepMillis = 10;
-        while (mUartDevice.read(buffer, buffer.length) == 0) {
-            try {
-                Thread.sleep(sleepMillis);
-                sleepMillis = sleepMillis * 2;
-                if (sleepMillis > 100) {
-                    Log.e(TAG, "ReadByte timeout, throwing exception");
-                    throw new IOException("UART ReadByte timeout");
+        byte[] rom = search.mRom;
+        int lastZero = 0;
+        reset();
+        oneWireWriteByte(search.isAlarmOnly() ? OW_ALARM_SEARCH : OW_SEARCH_ROM);
+        for (int bitNumber = 1; bitNumber <= OW_ID_SIZE * 8; ++bitNumber) {
+            int bytePos = (bitNumber - 1) >> 3;
+            int mask = 1 << ((bitNumber - 1) & 7);
+            // Where devices disagree, repeat the previous path before the last discrepancy,
+            // take the 1 path at it and the 0 path after it.
+            boolean preferred = bitNumber < search.mLastDiscrepancy
+                    ? (rom[bytePos] & mask) != 0
+                    : bitNumber == search.mLastDiscrepancy;
+            // The bus master reads the bit and its complement, both driven by all remaining
+            // devices, and writes the direction that devices with the other bit drop out on.
+            int triplet = oneWireTriplet(preferred);
+            boolean bit = (triplet & OneWireBusMaster.TRIPLET_BIT) != 0;
+            boolean complement = (triplet & OneWireBusMaster.TRIPLET_COMPLEMENT) != 0;
+            if (bit && complement) {
+                if (bitNumber == 1) {
+                    // No device took part in the search.
+                    search.finish();
+                    return 0;
                 }
-            } catch (InterruptedException e) {
-                break;
+                throw new IOException("Data Error");
+            }
+            if (!bit && !complement && !preferred) {
+                lastZero = bitNumber;
+            }
+            if ((triplet & OneWireBusMaster.TRIPLET_DIRECTION) != 0) {
+                rom[bytePos] |= mask;
+            } else {
+                rom[bytePos] &= ~mask;
             }
         }
-        int b = (buffer[0] & 0xff);
-        return b;
+        if (CRC8.compute(rom) != 0) {
+            mStats.increment(OneWireStats.COUNTER_CRC_FAILURES);
+            throw new IOException("Invalid ROM CRC8");
+        }
+        search.mLastDiscrepancy = lastZero;
+        if (lastZero == 0) {
+            search.finish();
+        }
+        if (!search.matchesFamily()) {
+            search.finish();
+            return 0;
+        }
+        long id = 0;
+        for (int i = 0; i < OW_ID_SIZE; ++i) {
+            id = (id << 8) | (rom[i] & 0xff);
+        }
+        return id;
+    }
+
+    /**
+     * Receive UART data through {@link com.google.android.things.pio.UartDeviceCallback}
+     * instead of polling. Only for a bus on a {@link UartBusMaster}.
+     *
+     * @param handler handler to deliver the callbacks on.
+     * @throws IOException
+     * @see UartBusMaster#enableCallbackReceive(Handler)
+     */
+    public void enableCallbackReceive(Handler handler) throws IOException {
+        OneWireBusMaster master = master();
+        if (!(master instanceof UartBusMaster)) {
+            throw new IllegalStateException("Not a UART bus");
+        }
+        ((UartBusMaster) master).enableCallbackReceive(handler);
+    }
+
+    /**
+     * Go back to polling the UART for received data.
+     */
+    public void disableCallbackReceive() {
+        if (mMaster instanceof UartBusMaster) {
+            ((UartBusMaster) mMaster).disableCallbackReceive();
+        }
+    }
+
+    private OneWireBusMaster master() {
+        if (mMaster == null) {
+            throw new IllegalStateException("Bus master is not open");
+        }
+        return mMaster;
     }
 
     protected boolean reset() throws IOException {
-        if (mUartDevice == null) {
-            throw new IllegalStateException("Uart device is not open");
-        }
-        mUartDevice.setBaudrate(9600);
-        uartWriteByte(0xf0);
-        int probe = uartReadByte();
-        mUartDevice.setBaudrate(115200);
-        if (probe == 0 || probe == 0xf0) {
+        if (!resetPresence()) {
             throw new IOException("OneWire devices not found");
         }
         return true;
     }
 
+    // Reset the bus, returning false instead of failing when no device answered.
+    boolean resetPresence() throws IOException {
+        OneWireBusMaster master = master();
+        long start = mClock.nanoTime();
+        mStats.increment(OneWireStats.COUNTER_RESETS);
+        boolean present = master.reset();
+        mStats.recordLatency(OneWireStats.HISTOGRAM_RESET, mClock.nanoTime() - start);
+        if (!present) {
+            mStats.increment(OneWireStats.COUNTER_PRESENCE_FAILURES);
+        }
+        return present;
+    }
+
     @Override
     public void close() throws IOException {
-        if (mUartDevice != null) {
+        if (mMaster != null) {
             try {
-                mUartDevice.close();
-                mUartDevice = null;
+                mMaster.close();
+                mMaster = null;
             } catch (IOException e) {
-                Log.w(TAG, "Unable to close UART device", e);
+                Log.w(TAG, "Unable to close bus master", e);
             }
         }
     }
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns a {@link OneWire} bus and runs all transactions on it from a single worker thread, so
+ * that any number of callers can share the bus without their bit slots interleaving.
+ * <p>
+ * Transactions are queued and their results are delivered through futures or callbacks.
+ * A transaction that starts a conversion can schedule its follow-up for when the conversion
+ * is done, leaving the bus free for other devices in the meantime.
+ */
+public class OneWireBusExecutor implements AutoCloseable {
+    private static final String TAG = OneWireBusExecutor.class.getSimpleName();
+
+    /**
+     * Work done on the bus from the worker thread.
+     *
+     * @param <T> type of the result.
+     */
+    public interface Transaction<T> {
+        T run(OneWire oneWire) throws IOException;
+    }
+
+    /**
+     * Receives the result of a transaction on the worker thread.
+     *
+     * @param <T> type of the result.
+     */
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        void onFailure(Exception e);
+    }
+
+    private final OneWire mOneWire;
+    private final ScheduledThreadPoolExecutor mWorker;
+    // Results not delivered yet, failed if the executor is closed before they run.
+    private final Set<CompletableFuture<?>> mPending =
+            Collections.newSetFromMap(new ConcurrentHashMap<CompletableFuture<?>, Boolean>());
+    private volatile Thread mWorkerThread;
+
+    /**
+     * Create an executor for the given bus. The bus must not be used directly while the
+     * executor is open.
+     *
+     * @param oneWire the bus to run transactions on.
+     */
+    public OneWireBusExecutor(OneWire oneWire) {
+        mOneWire = oneWire;
+        mWorker = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                mWorkerThread = thread;
+                return thread;
+            }
+        });
+        mWorker.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Queue a transaction.
+     *
+     * @param transaction the transaction to run.
+     * @return future with the result of the transaction.
+     */
+    public <T> Future<T> submit(Transaction<T> transaction) {
+        return schedule(transaction, 0);
+    }
+
+    /**
+     * Queue a transaction and deliver its result to a callback on the worker thread.
+     *
+     * @param transaction the transaction to run.
+     * @param callback    receives the result.
+     */
+    public <T> void submit(Transaction<T> transaction, final Callback<T> callback) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        enqueue(new Step<>(transaction, result, callback), 0, result);
+    }
+
+    /**
+     * Queue a transaction to run after a delay. Other transactions run in the meantime.
+     *
+     * @param transaction the transaction to run.
+     * @param delayMillis time to wait before running the transaction.
+     * @return future with the result of the transaction.
+     */
+    public <T> Future<T> schedule(Transaction<T> transaction, long delayMillis) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        enqueue(new Step<>(transaction, result, null), delayMillis, result);
+        return result;
+    }
+
+    /**
+     * Queue a transaction followed by a second one after a delay, e.g. starting a conversion
+     * and reading its result. Other transactions run on the bus during the delay.
+     *
+     * @param first       the first transaction.
+     * @param delayMillis time to wait between the transactions.
+     * @param then        the second transaction, run only if the first one succeeds.
+     * @return future with the result of the second transaction.
+     */
+    public <T> Future<T> submit(final Transaction<?> first, final long delayMillis,
+            final Transaction<T> then) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                if (result.isDone()) {
+                    return;
+                }
+                try {
+                    first.run(mOneWire);
+                } catch (Exception e) {
+                    mPending.remove(result);
+                    result.completeExceptionally(e);
+                    return;
+                }
+                enqueue(new Step<>(then, result, null), delayMillis, result);
+            }
+        }, 0, result);
+        return result;
+    }
+
+    /**
+     * Run a transaction and wait for its result. Called from the worker thread, e.g. from
+     * within another transaction, it runs right away instead of waiting on itself.
+     *
+     * @param transaction the transaction to run.
+     * @return the result of the transaction.
+     * @throws IOException if the transaction fails or the wait is interrupted.
+     */
+    public <T> T runAndWait(Transaction<T> transaction) throws IOException {
+        if (isWorkerThread()) {
+            return transaction.run(mOneWire);
+        }
+        try {
+            return submit(transaction).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the bus.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the bus the transactions run on.
+     */
+    /*package*/ OneWire getOneWire() {
+        return mOneWire;
+    }
+
+    /**
+     * Returns true if called from the thread that runs the transactions.
+     */
+    public boolean isWorkerThread() {
+        return Thread.currentThread() == mWorkerThread;
+    }
+
+    private void enqueue(Runnable task, long delayMillis, CompletableFuture<?> result) {
+        mPending.add(result);
+        try {
+            mWorker.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            mPending.remove(result);
+            result.completeExceptionally(new IOException("Bus executor is closed"));
+        }
+    }
+
+    /**
+     * Stop the worker thread. Transactions that did not run yet fail. The bus itself is not
+     * closed.
+     */
+    @Override
+    public void close() {
+        mWorker.shutdownNow();
+        IOException closed = new IOException("Bus executor is closed");
+        for (CompletableFuture<?> result : mPending) {
+            result.completeExceptionally(closed);
+        }
+        mPending.clear();
+    }
+
+    // Runs a transaction and completes its result.
+    private class Step<T> implements Runnable {
+        private final Transaction<T> mTransaction;
+        private final CompletableFuture<T> mResult;
+        private final Callback<T> mCallback;
+
+        Step(Transaction<T> transaction, CompletableFuture<T> result, Callback<T> callback) {
+            mTransaction = transaction;
+            mResult = result;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            if (mResult.isDone()) {
+                // Cancelled by the caller.
+                mPending.remove(mResult);
+                return;
+            }
+            T value;
+            try {
+                value = mTransaction.run(mOneWire);
+            } catch (Exception e) {
+                mPending.remove(mResult);
+                mResult.completeExceptionally(e);
+                if (mCallback != null) {
+                    mCallback.onFailure(e);
+                }
+                return;
+            }
+            mPending.remove(mResult);
+            mResult.complete(value);
+            if (mCallback != null) {
+                mCallback.onSuccess(value);
+            }
+        }
+    }
+}
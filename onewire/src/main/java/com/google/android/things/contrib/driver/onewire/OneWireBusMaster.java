@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import com.dalsemi.onewire.utils.CRC8;
+
+import java.io.IOException;
+
+/**
+ * Hardware that generates the reset pulses and time slots of a 1-Wire bus. {@link OneWire}
+ * builds ROM commands, transactions and searches on top of these primitives, so the same
+ * device drivers run on any bus master.
+ *
+ * @see UartBusMaster
+ * @see Ds2482BusMaster
+ */
+public interface OneWireBusMaster extends AutoCloseable {
+
+    /**
+     * Bit of a {@link #triplet(boolean)} result: the ROM bit read.
+     */
+    int TRIPLET_BIT = 0x01;
+
+    /**
+     * Bit of a {@link #triplet(boolean)} result: the complement of the ROM bit read.
+     */
+    int TRIPLET_COMPLEMENT = 0x02;
+
+    /**
+     * Bit of a {@link #triplet(boolean)} result: the search direction written.
+     */
+    int TRIPLET_DIRECTION = 0x04;
+
+    /**
+     * Bind the master to the bus that drives it, whose clock, stats and trace it reports to.
+     * Called once by {@link OneWire#OneWire(OneWireBusMaster)}.
+     *
+     * @param oneWire the bus.
+     */
+    void attach(OneWire oneWire);
+
+    /**
+     * Send a reset pulse.
+     *
+     * @return true if at least one device answered with a presence pulse.
+     * @throws IOException
+     */
+    boolean reset() throws IOException;
+
+    /**
+     * Run a single time slot: write 0, or write 1 and sample the bus.
+     *
+     * @param bit the bit to write; true also reads a bit.
+     * @return the bit read back, false if the master wrote 0 or a device held the bus low.
+     * @throws IOException
+     */
+    boolean touchBit(boolean bit) throws IOException;
+
+    /**
+     * Send bytes LSB first and replace each with the byte read back. Bytes of 0xff read from
+     * the devices.
+     *
+     * @param data   bytes to send, overwritten with the bytes read back.
+     * @param offset offset of the first byte in the array.
+     * @param length number of bytes.
+     * @throws IOException
+     */
+    void touchBytes(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Same as {@link #touchBytes(byte[], int, int)}, also adding each byte from index crcStart
+     * on to a CRC8 as soon as it is read back, so that checking a response takes no second
+     * pass over it.
+     *
+     * @param data     bytes to send, overwritten with the bytes read back.
+     * @param offset   offset of the first byte in the array.
+     * @param length   number of bytes.
+     * @param crc      CRC8 to add the bytes read back to, or null.
+     * @param crcStart index in the array of the first byte to add.
+     * @throws IOException
+     */
+    void touchBytes(byte[] data, int offset, int length, CRC8.Accumulator crc, int crcStart)
+            throws IOException;
+
+    /**
+     * Run the three slots of one ROM search bit: read the bit and its complement, then write
+     * the direction that the remaining devices follow. The direction is the bit read if the
+     * two reads differ, the given direction if both are 0 and 1 if both are 1.
+     *
+     * @param direction direction to take if devices with both bit values remain.
+     * @return {@link #TRIPLET_BIT}, {@link #TRIPLET_COMPLEMENT} and {@link #TRIPLET_DIRECTION}
+     * flags.
+     * @throws IOException
+     */
+    int triplet(boolean direction) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
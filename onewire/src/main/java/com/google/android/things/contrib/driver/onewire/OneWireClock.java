@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+/**
+ * Source of time for a {@link OneWire} bus and the drivers on it. All timestamps, deadlines
+ * and waits of bus operations go through it, so that tests can run them in virtual time.
+ *
+ * @see OneWire#setClock(OneWireClock)
+ */
+public interface OneWireClock {
+
+    /**
+     * Clock of the running system.
+     */
+    OneWireClock SYSTEM = new OneWireClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+    };
+
+    /**
+     * Returns the current time in nanoseconds, with the semantics of {@link System#nanoTime()}.
+     */
+    long nanoTime();
+
+    /**
+     * Wait for the given time.
+     *
+     * @param millis time to wait in milliseconds.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    void sleep(long millis) throws InterruptedException;
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide registry that keeps one open {@link OneWire} per UART, shared by all drivers
+ * on that UART. A bus is closed once nobody has used it for the idle timeout, so that
+ * repeated readings do not pay for opening and configuring the UART.
+ */
+public class OneWireRegistry {
+    private static final String TAG = OneWireRegistry.class.getSimpleName();
+
+    /**
+     * Default time an unused bus stays open.
+     */
+    public static final long DEFAULT_IDLE_CLOSE_MS = 60 * 1000;
+
+    private static OneWireRegistry sInstance;
+
+    // Opens the bus for a UART name.
+    interface Opener {
+        OneWire open(String uart) throws IOException;
+    }
+
+    private static class Entry {
+        final OneWire mOneWire;
+        int mReferences;
+        // OneWireClock time of the last release.
+        long mReleaseNanos;
+        ScheduledFuture<?> mPendingClose;
+        OneWireBusExecutor mExecutor;
+
+        Entry(OneWire oneWire) {
+            mOneWire = oneWire;
+        }
+    }
+
+    private final Opener mOpener;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final ScheduledThreadPoolExecutor mCloser;
+    private final OneWireClock mClock;
+    private long mIdleCloseMillis;
+    private RomIdCache mRomIdCache;
+
+    /**
+     * Returns the registry shared by the whole process.
+     */
+    public static synchronized OneWireRegistry getInstance() {
+        if (sInstance == null) {
+            sInstance = new OneWireRegistry(new Opener() {
+                @Override
+                public OneWire open(String uart) throws IOException {
+                    return new OneWire(uart);
+                }
+            }, DEFAULT_IDLE_CLOSE_MS);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    /*package*/ OneWireRegistry(Opener opener, long idleCloseMillis) {
+        this(opener, idleCloseMillis, OneWireClock.SYSTEM);
+    }
+
+    @VisibleForTesting
+    /*package*/ OneWireRegistry(Opener opener, long idleCloseMillis, OneWireClock clock) {
+        mOpener = opener;
+        mIdleCloseMillis = idleCloseMillis;
+        mClock = clock;
+        mCloser = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mCloser.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Set how long a bus stays open after its last user released it.
+     *
+     * @param idleCloseMillis idle time in milliseconds, 0 to close right away.
+     */
+    public synchronized void setIdleCloseMillis(long idleCloseMillis) {
+        mIdleCloseMillis = idleCloseMillis;
+    }
+
+    /**
+     * Set the cache that drivers keep the ROM IDs found on each UART in, so that they skip the
+     * ROM search after a restart.
+     *
+     * @param cache the cache, or null to always search.
+     */
+    public synchronized void setRomIdCache(RomIdCache cache) {
+        mRomIdCache = cache;
+    }
+
+    /**
+     * Returns the ROM ID cache, or null if there is none.
+     */
+    public synchronized RomIdCache getRomIdCache() {
+        return mRomIdCache;
+    }
+
+    /**
+     * Get the bus on the given UART, opening it if needed. Every call must be paired with a
+     * call to {@link #release(OneWire)}.
+     *
+     * @param uart UART port the bus is connected to.
+     * @return the bus shared by all users of the UART.
+     * @throws IOException
+     */
+    public synchronized OneWire acquire(String uart) throws IOException {
+        Entry entry = mEntries.get(uart);
+        if (entry == null) {
+            entry = new Entry(mOpener.open(uart));
+            mEntries.put(uart, entry);
+        }
+        if (entry.mPendingClose != null) {
+            entry.mPendingClose.cancel(false);
+            entry.mPendingClose = null;
+        }
+        entry.mReferences++;
+        return entry.mOneWire;
+    }
+
+    /**
+     * Get the executor that serializes the transactions of all users of a bus. Users that may
+     * run concurrently with others on the same UART must go through it instead of calling the
+     * bus directly.
+     *
+     * @param oneWire a bus returned by {@link #acquire(String)} and not released yet.
+     * @return the executor shared by all users of the bus.
+     */
+    public synchronized OneWireBusExecutor getExecutor(OneWire oneWire) {
+        for (Entry entry : mEntries.values()) {
+            if (entry.mOneWire == oneWire) {
+                if (entry.mExecutor == null) {
+                    entry.mExecutor = new OneWireBusExecutor(oneWire);
+                }
+                return entry.mExecutor;
+            }
+        }
+        throw new IllegalArgumentException("Bus was not acquired from this registry");
+    }
+
+    /**
+     * Release a bus returned by {@link #acquire(String)}. The bus is closed when it has not
+     * been acquired again within the idle timeout.
+     *
+     * @param oneWire the bus to release.
+     */
+    public synchronized void release(OneWire oneWire) {
+        for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+            final Entry entry = e.getValue();
+            if (entry.mOneWire != oneWire) {
+                continue;
+            }
+            if (--entry.mReferences > 0) {
+                return;
+            }
+            entry.mReleaseNanos = mClock.nanoTime();
+            if (mIdleCloseMillis <= 0) {
+                closeIdle(e.getKey(), entry);
+            } else {
+                scheduleClose(e.getKey(), entry, mIdleCloseMillis);
+            }
+            return;
+        }
+        throw new IllegalArgumentException("Bus was not acquired from this registry");
+    }
+
+    /**
+     * Close the released buses whose idle timeout has passed on the clock of the registry,
+     * like the idle timer does when it expires.
+     */
+    @VisibleForTesting
+    /*package*/ synchronized void closeIdleBuses() {
+        for (Map.Entry<String, Entry> e : new ArrayList<>(mEntries.entrySet())) {
+            closeWhenIdle(e.getKey(), e.getValue());
+        }
+    }
+
+    private void scheduleClose(final String uart, final Entry entry, long delayMillis) {
+        if (entry.mPendingClose != null) {
+            entry.mPendingClose.cancel(false);
+        }
+        entry.mPendingClose = mCloser.schedule(new Runnable() {
+            @Override
+            public void run() {
+                closeWhenIdle(uart, entry);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // The timer only wakes the check up: the idle time is measured on the clock, and the check
+    // runs again if the bus has not been idle long enough yet.
+    private synchronized void closeWhenIdle(String uart, Entry entry) {
+        if (entry.mReferences > 0 || mEntries.get(uart) != entry) {
+            // Acquired again meanwhile.
+            return;
+        }
+        long leftMillis = mIdleCloseMillis - (mClock.nanoTime() - entry.mReleaseNanos) / 1000000;
+        if (leftMillis > 0) {
+            scheduleClose(uart, entry, leftMillis);
+        } else {
+            closeIdle(uart, entry);
+        }
+    }
+
+    private void closeIdle(String uart, Entry entry) {
+        if (entry.mPendingClose != null) {
+            entry.mPendingClose.cancel(false);
+            entry.mPendingClose = null;
+        }
+        mEntries.remove(uart);
+        if (entry.mExecutor != null) {
+            entry.mExecutor.close();
+        }
+        try {
+            entry.mOneWire.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close " + uart, e);
+        }
+    }
+
+    /**
+     * Returns true if the registry has an open bus on the given UART.
+     */
+    public synchronized boolean isOpen(String uart) {
+        return mEntries.containsKey(uart);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of a {@link OneWire} bus. Recording is lock-free and does
+ * not allocate, so it stays on for every bus operation; {@link #snapshot()} copies the values
+ * for export.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class OneWireStats {
+
+    /**
+     * Bus resets.
+     */
+    public static final int COUNTER_RESETS = 0;
+    /**
+     * Resets that no device answered with a presence pulse.
+     */
+    public static final int COUNTER_PRESENCE_FAILURES = 1;
+    /**
+     * Bytes sent or read on the bus.
+     */
+    public static final int COUNTER_BYTES = 2;
+    /**
+     * Bit slots, including those of the bytes.
+     */
+    public static final int COUNTER_BIT_SLOTS = 3;
+    /**
+     * Responses and ROM IDs that failed their CRC check.
+     */
+    public static final int COUNTER_CRC_FAILURES = 4;
+    /**
+     * UART reads and conversions that timed out.
+     */
+    public static final int COUNTER_TIMEOUTS = 5;
+    /**
+     * Transactions run again after a CRC failure.
+     */
+    public static final int COUNTER_RETRIES = 6;
+    static final int COUNTER_COUNT = 7;
+
+    /**
+     * Time of a reset and its presence pulse.
+     */
+    public static final int HISTOGRAM_RESET = 0;
+    /**
+     * Time of a whole transaction, from the reset to the last byte.
+     */
+    public static final int HISTOGRAM_TRANSACTION = 1;
+    /**
+     * Time from the start of a temperature conversion until it was seen to complete.
+     */
+    public static final int HISTOGRAM_CONVERSION = 2;
+    static final int HISTOGRAM_COUNT = 3;
+
+    // Upper bounds of the histogram buckets in microseconds. The last bucket has no bound.
+    private static final long[] BUCKET_BOUNDS_US = {
+            100, 200, 500,
+            1000, 2000, 5000,
+            10000, 20000, 50000,
+            100000, 200000, 500000,
+            1000000,
+    };
+    /**
+     * Number of buckets in each histogram.
+     */
+    public static final int BUCKET_COUNT = BUCKET_BOUNDS_US.length + 1;
+
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+    // Bucket counts of all histograms, one histogram after the other.
+    private final AtomicLongArray mBuckets = new AtomicLongArray(HISTOGRAM_COUNT * BUCKET_COUNT);
+    private final AtomicLongArray mTotalNanos = new AtomicLongArray(HISTOGRAM_COUNT);
+
+    void increment(int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+    void add(int counter, long delta) {
+        mCounters.addAndGet(counter, delta);
+    }
+
+    void recordLatency(int histogram, long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_US.length && micros > BUCKET_BOUNDS_US[bucket]) {
+            bucket++;
+        }
+        mBuckets.incrementAndGet(histogram * BUCKET_COUNT + bucket);
+        mTotalNanos.addAndGet(histogram, nanos);
+    }
+
+    /**
+     * Returns the current value of a counter.
+     *
+     * @param counter one of the {@code COUNTER_*} constants.
+     */
+    public long getCounter(int counter) {
+        return mCounters.get(counter);
+    }
+
+    /**
+     * Returns the upper bound in microseconds of a histogram bucket, or
+     * {@link Long#MAX_VALUE} for the last bucket.
+     */
+    public static long getBucketUpperBoundMicros(int bucket) {
+        return bucket < BUCKET_BOUNDS_US.length ? BUCKET_BOUNDS_US[bucket] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Copy all counters and histograms. Values recorded while copying may or may not be
+     * included, but each value is consistent on its own.
+     */
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        for (int i = 0; i < COUNTER_COUNT; ++i) {
+            snapshot.mCounters[i] = mCounters.get(i);
+        }
+        for (int i = 0; i < HISTOGRAM_COUNT * BUCKET_COUNT; ++i) {
+            snapshot.mBuckets[i] = mBuckets.get(i);
+        }
+        for (int i = 0; i < HISTOGRAM_COUNT; ++i) {
+            snapshot.mTotalNanos[i] = mTotalNanos.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Set all counters and histograms back to zero.
+     */
+    public void reset() {
+        for (int i = 0; i < COUNTER_COUNT; ++i) {
+            mCounters.set(i, 0);
+        }
+        for (int i = 0; i < HISTOGRAM_COUNT * BUCKET_COUNT; ++i) {
+            mBuckets.set(i, 0);
+        }
+        for (int i = 0; i < HISTOGRAM_COUNT; ++i) {
+            mTotalNanos.set(i, 0);
+        }
+    }
+
+    /**
+     * Values of the counters and histograms at one point in time.
+     */
+    public static class Snapshot {
+        private final long[] mCounters = new long[COUNTER_COUNT];
+        private final long[] mBuckets = new long[HISTOGRAM_COUNT * BUCKET_COUNT];
+        private final long[] mTotalNanos = new long[HISTOGRAM_COUNT];
+
+        /**
+         * Returns the value of a counter.
+         *
+         * @param counter one of the {@code COUNTER_*} constants.
+         */
+        public long getCounter(int counter) {
+            return mCounters[counter];
+        }
+
+        /**
+         * Returns the number of latencies recorded in a histogram bucket.
+         *
+         * @param histogram one of the {@code HISTOGRAM_*} constants.
+         * @param bucket    bucket index, from 0 to {@link #BUCKET_COUNT} - 1.
+         * @see OneWireStats#getBucketUpperBoundMicros(int)
+         */
+        public long getBucketCount(int histogram, int bucket) {
+            return mBuckets[histogram * BUCKET_COUNT + bucket];
+        }
+
+        /**
+         * Returns the number of latencies recorded in a histogram.
+         *
+         * @param histogram one of the {@code HISTOGRAM_*} constants.
+         */
+        public long getCount(int histogram) {
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                count += mBuckets[histogram * BUCKET_COUNT + i];
+            }
+            return count;
+        }
+
+        /**
+         * Returns the mean latency of a histogram in nanoseconds, 0 if it is empty.
+         *
+         * @param histogram one of the {@code HISTOGRAM_*} constants.
+         */
+        public long getMeanNanos(int histogram) {
+            long count = getCount(histogram);
+            return count == 0 ? 0 : mTotalNanos[histogram] / count;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("resets=").append(mCounters[COUNTER_RESETS])
+                    .append(" presenceFailures=").append(mCounters[COUNTER_PRESENCE_FAILURES])
+                    .append(" bytes=").append(mCounters[COUNTER_BYTES])
+                    .append(" bitSlots=").append(mCounters[COUNTER_BIT_SLOTS])
+                    .append(" crcFailures=").append(mCounters[COUNTER_CRC_FAILURES])
+                    .append(" timeouts=").append(mCounters[COUNTER_TIMEOUTS])
+                    .append(" retries=").append(mCounters[COUNTER_RETRIES]);
+            String[] names = {"reset", "transaction", "conversion"};
+            for (int h = 0; h < HISTOGRAM_COUNT; ++h) {
+                sb.append('\n').append(names[h]).append(": n=").append(getCount(h))
+                        .append(" mean=").append(getMeanNanos(h) / 1000).append("us");
+                for (int b = 0; b < BUCKET_COUNT; ++b) {
+                    long count = getBucketCount(h, b);
+                    if (count == 0) {
+                        continue;
+                    }
+                    long bound = getBucketUpperBoundMicros(b);
+                    sb.append(' ').append(bound == Long.MAX_VALUE ? "inf" : "<=" + bound + "us")
+                            .append(':').append(count);
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records the most recent UART operations of a {@link OneWire} bus in a preallocated ring,
+ * overwriting the oldest ones. Recording does not allocate, and a bus without a trace does
+ * not pay for it.
+ * <p>
+ * Every record holds the {@link OneWireClock#nanoTime()} of the operation, its type, the byte
+ * written to the UART, the byte echoed back and the baud rate.
+ *
+ * @see OneWire#setTrace(OneWireTrace)
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class OneWireTrace {
+
+    /**
+     * Reset pulse at 9600 baud; the echo is the presence pulse.
+     */
+    public static final int OP_RESET = 1;
+    /**
+     * Single bit slot.
+     */
+    public static final int OP_BIT = 2;
+    /**
+     * Bit slot sent as part of a burst.
+     */
+    public static final int OP_BURST_SLOT = 3;
+    /**
+     * UART read that timed out waiting for echoes.
+     */
+    public static final int OP_TIMEOUT = 4;
+
+    // Identifies dump files: "OWTR" and the format version.
+    static final int DUMP_MAGIC = 0x4f575452;
+    static final int DUMP_VERSION = 1;
+
+    // Two longs per record: the timestamp, then op, written, echoed and baud packed together.
+    private final long[] mRecords;
+    private final int mCapacity;
+    private long mCount;
+
+    /**
+     * Create a trace that keeps the given number of most recent records.
+     *
+     * @param capacity number of records to keep.
+     */
+    public OneWireTrace(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        mCapacity = capacity;
+        mRecords = new long[capacity * 2];
+    }
+
+    synchronized void record(long timestampNanos, int op, int written, int echoed, int baud) {
+        int index = (int) (mCount % mCapacity) * 2;
+        mRecords[index] = timestampNanos;
+        mRecords[index + 1] = ((long) (op & 0xff) << 48) | ((long) (written & 0xff) << 40)
+                | ((long) (echoed & 0xff) << 32) | (baud & 0xffffffffL);
+        mCount++;
+    }
+
+    /**
+     * Returns the number of records kept, at most the capacity.
+     */
+    public synchronized int size() {
+        return (int) Math.min(mCount, mCapacity);
+    }
+
+    /**
+     * Returns the number of records made since the trace was created or cleared, including
+     * those overwritten.
+     */
+    public synchronized long getTotalCount() {
+        return mCount;
+    }
+
+    /**
+     * Drop all records.
+     */
+    public synchronized void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * Returns the timestamp of a record.
+     *
+     * @param i index of the record, 0 for the oldest kept.
+     */
+    public synchronized long getTimestampNanos(int i) {
+        return mRecords[slot(i)];
+    }
+
+    /**
+     * Returns the {@code OP_*} type of a record.
+     *
+     * @param i index of the record, 0 for the oldest kept.
+     */
+    public synchronized int getOp(int i) {
+        return (int) (mRecords[slot(i) + 1] >>> 48) & 0xff;
+    }
+
+    /**
+     * Returns the byte written to the UART by a record.
+     *
+     * @param i index of the record, 0 for the oldest kept.
+     */
+    public synchronized int getWritten(int i) {
+        return (int) (mRecords[slot(i) + 1] >>> 40) & 0xff;
+    }
+
+    /**
+     * Returns the byte echoed by the UART for a record.
+     *
+     * @param i index of the record, 0 for the oldest kept.
+     */
+    public synchronized int getEchoed(int i) {
+        return (int) (mRecords[slot(i) + 1] >>> 32) & 0xff;
+    }
+
+    /**
+     * Returns the baud rate of a record.
+     *
+     * @param i index of the record, 0 for the oldest kept.
+     */
+    public synchronized int getBaud(int i) {
+        return (int) mRecords[slot(i) + 1];
+    }
+
+    private int slot(int i) {
+        int size = size();
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Record " + i + " of " + size);
+        }
+        return (int) ((mCount - size + i) % mCapacity) * 2;
+    }
+
+    /**
+     * Write the kept records to a file, oldest first.
+     *
+     * @param file file to create or overwrite.
+     * @throws IOException
+     * @see #dump(OutputStream)
+     */
+    public void dump(File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            dump(out);
+        }
+    }
+
+    /**
+     * Write the kept records to a stream, oldest first. The format is big-endian: the magic
+     * number 0x4f575452 ("OWTR"), the format version and the record count as ints, then per
+     * record the timestamp as a long, the op, written and echoed bytes, and the baud rate as an
+     * int.
+     *
+     * @param out stream to write to. It is not closed.
+     * @throws IOException
+     */
+    public synchronized void dump(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        int size = size();
+        data.writeInt(DUMP_MAGIC);
+        data.writeInt(DUMP_VERSION);
+        data.writeInt(size);
+        for (int i = 0; i < size; ++i) {
+            data.writeLong(getTimestampNanos(i));
+            data.writeByte(getOp(i));
+            data.writeByte(getWritten(i));
+            data.writeByte(getEchoed(i));
+            data.writeInt(getBaud(i));
+        }
+        data.flush();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import android.util.Log;
+
+import com.dalsemi.onewire.utils.CRC16;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the ROM IDs found on each UART in a small file, so that drivers can skip the ROM
+ * search after a restart. Cached IDs are only a hint: drivers verify that each device still
+ * answers before using them and search the bus again otherwise.
+ *
+ * @see OneWireRegistry#setRomIdCache(RomIdCache)
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class RomIdCache {
+    private static final String TAG = RomIdCache.class.getSimpleName();
+
+    // Identifies cache files: "OWID" and the format version.
+    static final int FILE_MAGIC = 0x4f574944;
+    static final int FILE_VERSION = 1;
+    // Magic, version and count before the IDs, and the CRC16 after them.
+    private static final int HEADER_SIZE = 12;
+    private static final int CRC_SIZE = 2;
+    // Larger files are not cache files of this format.
+    private static final int MAX_IDS = 1024;
+
+    private final File mDirectory;
+
+    /**
+     * Create a cache that keeps its files in the given directory, e.g. the one returned by
+     * {@code Context.getFilesDir()}.
+     *
+     * @param directory existing directory for the cache files.
+     */
+    public RomIdCache(File directory) {
+        if (directory == null) {
+            throw new IllegalArgumentException("Directory is null");
+        }
+        mDirectory = directory;
+    }
+
+    /**
+     * Returns the file that keeps the ROM IDs of the given UART.
+     */
+    public File getFile(String uart) {
+        return new File(mDirectory, "onewire-" + uart.replaceAll("[^A-Za-z0-9_-]", "_") + ".rom");
+    }
+
+    /**
+     * Load the ROM IDs last stored for the given UART.
+     *
+     * @param uart UART port of the bus.
+     * @return the stored ROM IDs, empty if there are none or the file is damaged.
+     */
+    public synchronized long[] load(String uart) {
+        File file = getFile(uart);
+        if (!file.exists()) {
+            return new long[0];
+        }
+        try {
+            return decode(readFile(file));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to load " + file, e);
+            return new long[0];
+        }
+    }
+
+    /**
+     * Store the ROM IDs found on the given UART, replacing those stored before. The file is
+     * written beside the old one and then renamed over it, so that a crash does not leave a
+     * partial file behind.
+     *
+     * @param uart UART port of the bus.
+     * @param ids  ROM IDs of the devices on the bus.
+     * @throws IOException
+     */
+    public synchronized void store(String uart, long[] ids) throws IOException {
+        if (ids.length > MAX_IDS) {
+            throw new IllegalArgumentException("Too many ROM IDs: " + ids.length);
+        }
+        File file = getFile(uart);
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            out.write(encode(ids));
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Forget the ROM IDs stored for the given UART.
+     *
+     * @param uart UART port of the bus.
+     */
+    public synchronized void clear(String uart) {
+        File file = getFile(uart);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+
+    // The format is big-endian: the magic number 0x4f574944 ("OWID"), the format version and
+    // the ID count as ints, the IDs as longs, then the CRC16 of all the bytes before it.
+    static byte[] encode(long[] ids) throws IOException {
+        ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream(HEADER_SIZE + ids.length * 8 + CRC_SIZE);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(FILE_MAGIC);
+        data.writeInt(FILE_VERSION);
+        data.writeInt(ids.length);
+        for (long id : ids) {
+            data.writeLong(id);
+        }
+        data.writeShort(CRC16.compute(bytes.toByteArray()));
+        return bytes.toByteArray();
+    }
+
+    static long[] decode(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE + CRC_SIZE || buffer.getInt() != FILE_MAGIC) {
+            throw new IOException("Not a ROM ID cache file");
+        }
+        int version = buffer.getInt();
+        if (version != FILE_VERSION) {
+            throw new IOException("Unsupported version: " + version);
+        }
+        int count = buffer.getInt();
+        if (count < 0 || count > MAX_IDS || bytes.length != HEADER_SIZE + count * 8 + CRC_SIZE) {
+            throw new IOException("Invalid ROM ID count: " + count);
+        }
+        int crc = CRC16.compute(bytes, 0, bytes.length - CRC_SIZE);
+        if (crc != (buffer.getShort(bytes.length - CRC_SIZE) & 0xffff)) {
+            throw new IOException("Invalid CRC16. Expected: " + Integer.toHexString(crc));
+        }
+        long[] ids = new long[count];
+        for (int i = 0; i < count; ++i) {
+            ids[i] = buffer.getLong();
+        }
+        return ids;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        long length = file.length();
+        if (length > HEADER_SIZE + MAX_IDS * 8 + CRC_SIZE) {
+            throw new IOException("File too large: " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                read += count;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+/**
+ * State of a OneWire ROM search, so that a search can be resumed where it stopped.
+ *
+ * @see OneWire#searchNext(RomSearch)
+ */
+public class RomSearch {
+    /**
+     * Family code that matches any device.
+     */
+    public static final int ANY_FAMILY = -1;
+
+    private final int mFamilyCode;
+    private final boolean mAlarmOnly;
+    // ROM of the last device found, in the order the bytes are sent on the bus.
+    final byte[] mRom = new byte[OneWire.OW_ID_SIZE];
+    // Bit position (1 to 64) of the last branch where the search took the 0 path.
+    int mLastDiscrepancy;
+    boolean mLastDevice;
+
+    /**
+     * Create a search for all devices on the bus.
+     */
+    public RomSearch() {
+        this(ANY_FAMILY);
+    }
+
+    /**
+     * Create a search for the devices with the given family code only.
+     *
+     * @param familyCode family code of the devices, or {@link #ANY_FAMILY}.
+     */
+    public RomSearch(int familyCode) {
+        this(familyCode, false);
+    }
+
+    /**
+     * Create a search for the devices with the given family code, optionally only for those
+     * with their alarm flag set.
+     *
+     * @param familyCode family code of the devices, or {@link #ANY_FAMILY}.
+     * @param alarmOnly  true to find only the devices in an alarm condition.
+     */
+    public RomSearch(int familyCode, boolean alarmOnly) {
+        mFamilyCode = familyCode;
+        mAlarmOnly = alarmOnly;
+        restart();
+    }
+
+    /**
+     * Start the search over from the first device.
+     */
+    public void restart() {
+        for (int i = 0; i < mRom.length; ++i) {
+            mRom[i] = 0;
+        }
+        mLastDevice = false;
+        if (mFamilyCode == ANY_FAMILY) {
+            mLastDiscrepancy = 0;
+        } else {
+            // Steer the first pass to the family, taking the 0 path everywhere after it.
+            mRom[0] = (byte) mFamilyCode;
+            mLastDiscrepancy = OneWire.OW_ID_SIZE * 8;
+        }
+    }
+
+    /**
+     * Returns true when all the devices have been found.
+     */
+    public boolean isDone() {
+        return mLastDevice;
+    }
+
+    /**
+     * Returns the family code the search is restricted to, or {@link #ANY_FAMILY}.
+     */
+    public int getFamilyCode() {
+        return mFamilyCode;
+    }
+
+    /**
+     * Returns true if the search finds only the devices in an alarm condition.
+     */
+    public boolean isAlarmOnly() {
+        return mAlarmOnly;
+    }
+
+    // Called when the pass found a device outside of the family, or no device at all.
+    void finish() {
+        mLastDevice = true;
+    }
+
+    boolean matchesFamily() {
+        return mFamilyCode == ANY_FAMILY || (mRom[0] & 0xff) == mFamilyCode;
+    }
+}
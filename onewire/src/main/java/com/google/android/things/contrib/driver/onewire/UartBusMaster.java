@@ -0,0 +1,375 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import android.os.Handler;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.dalsemi.onewire.utils.CRC8;
+import com.google.android.things.pio.PeripheralManager;
+import com.google.android.things.pio.UartDevice;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * 1-Wire bus master on a UART with TX and RX tied to the bus through a diode or open-drain
+ * buffer. A reset is a 0xf0 character at 9600 baud, and every time slot is one character at
+ * 115200 baud: 0xff writes 1 and reads back 0xff only if no device held the bus low, 0x00
+ * writes 0. Bytes are sent as bursts of slots with a single UART write and read.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class UartBusMaster implements OneWireBusMaster {
+    private static final String TAG = UartBusMaster.class.getSimpleName();
+
+    // Longest wait for the echo of a burst.
+    static final int UART_READ_TIMEOUT_MS = 100;
+
+    // Reusable buffers so that bus I/O does not allocate.
+    private final byte[] mTxSlots = new byte[OneWire.MAX_BURST_BYTES * 8];
+    private final byte[] mRxSlots = new byte[OneWire.MAX_BURST_BYTES * 8];
+    private final byte[] mRxChunk = new byte[OneWire.MAX_BURST_BYTES * 8];
+    private final byte[] mTxChunk = new byte[OneWire.MAX_BURST_BYTES * 8];
+    private int mBaudrate;
+
+    UartDevice mUartDevice;
+    private OneWire mOneWire;
+    // Set while data is received through UART callbacks instead of polling.
+    private UartReceiver mReceiver;
+
+    /**
+     * Create a bus master on the given UART.
+     *
+     * @param uart UART port the bus is connected to.
+     * @throws IOException
+     */
+    public UartBusMaster(String uart) throws IOException {
+        this(PeripheralManager.getInstance().openUartDevice(uart));
+    }
+
+    /**
+     * Create a bus master on the given UART.
+     *
+     * @param device UART device of the bus.
+     * @throws IOException
+     */
+    @VisibleForTesting
+    /*package*/ UartBusMaster(UartDevice device) throws IOException {
+        mUartDevice = device;
+
+        try {
+            mUartDevice.setDataSize(8);
+            mUartDevice.setParity(UartDevice.PARITY_NONE);
+            mUartDevice.setStopBits(1);
+            mUartDevice.setHardwareFlowControl(UartDevice.HW_FLOW_CONTROL_NONE);
+        } catch (IOException | RuntimeException e) {
+            try {
+                close();
+            } catch (IOException | RuntimeException ignored) {
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void attach(OneWire oneWire) {
+        mOneWire = oneWire;
+    }
+
+    @Override
+    public boolean reset() throws IOException {
+        checkOpen();
+        if (mReceiver != null) {
+            // Drop echoes left over from a failed transaction.
+            mReceiver.clear();
+        }
+        setBaudrate(9600);
+        uartWriteByte(0xf0);
+        int probe = uartReadByte();
+        OneWireTrace trace = mOneWire.getTrace();
+        if (trace != null) {
+            trace.record(mOneWire.getClock().nanoTime(), OneWireTrace.OP_RESET, 0xf0, probe,
+                    mBaudrate);
+        }
+        setBaudrate(115200);
+        return probe != 0 && probe != 0xf0;
+    }
+
+    @Override
+    public boolean touchBit(boolean b) throws IOException {
+        if (b) {
+            /* Write 1 */
+            uartWriteByte(0xff);
+        } else {
+            /* Write 0 */
+            uartWriteByte(0x00);
+        }
+
+        /* Read */
+        int c = uartReadByte();
+        OneWireTrace trace = mOneWire.getTrace();
+        if (trace != null) {
+            trace.record(mOneWire.getClock().nanoTime(), OneWireTrace.OP_BIT, mTxSlots[0], c,
+                    mBaudrate);
+        }
+        return (c & 0xff) == 0xff;
+    }
+
+    @Override
+    public void touchBytes(byte[] data, int offset, int length) throws IOException {
+        touchBytes(data, offset, length, null, 0);
+    }
+
+    @Override
+    public void touchBytes(byte[] data, int offset, int length, CRC8.Accumulator crc,
+            int crcStart) throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, OneWire.MAX_BURST_BYTES);
+            int slotCount = count * 8;
+            encodeSlots(data, offset, count, mTxSlots);
+            uartWriteBytes(mTxSlots, slotCount);
+
+            // Each echoed slot reads back as 0xff only if no device pulled the bus low.
+            uartReadBytes(mRxSlots, slotCount);
+            OneWireTrace trace = mOneWire.getTrace();
+            if (trace != null) {
+                long now = mOneWire.getClock().nanoTime();
+                for (int i = 0; i < slotCount; ++i) {
+                    trace.record(now, OneWireTrace.OP_BURST_SLOT, mTxSlots[i], mRxSlots[i],
+                            mBaudrate);
+                }
+            }
+            decodeSlots(0, data, offset, count, crc, crcStart);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Encode bytes into bit slots once, to replay them with
+     * {@link #touchSlots(byte[], int, byte[], int, CRC8.Accumulator)}.
+     *
+     * @param data bytes to send.
+     * @return one slot character per bit, LSB first.
+     */
+    static byte[] encodeSlots(byte[] data) {
+        byte[] slots = new byte[data.length * 8];
+        encodeSlots(data, 0, data.length, slots);
+        return slots;
+    }
+
+    // Encode all bit slots, LSB first.
+    private static void encodeSlots(byte[] data, int offset, int count, byte[] slots) {
+        for (int i = 0; i < count * 8; ++i) {
+            slots[i] = ((data[offset + (i >> 3)] >> (i & 7)) & 1) != 0 ? (byte) 0xff : 0x00;
+        }
+    }
+
+    /**
+     * Send bit slots encoded by {@link #encodeSlots(byte[])} as one burst, and decode only the
+     * bytes read back after the first writeCount ones.
+     *
+     * @param slots      bit slots to send, at most {@link OneWire#MAX_BURST_BYTES} bytes worth.
+     * @param writeCount number of bytes whose echoes are not decoded.
+     * @param dst        array to fill with the bytes read back after them.
+     * @param offset     offset of the first byte read in the array.
+     * @param crc        CRC8 to add the bytes read to as they are decoded, or null.
+     * @throws IOException
+     */
+    void touchSlots(byte[] slots, int writeCount, byte[] dst, int offset, CRC8.Accumulator crc)
+            throws IOException {
+        int slotCount = slots.length;
+        uartWriteBytes(slots, slotCount);
+        uartReadBytes(mRxSlots, slotCount);
+        OneWireTrace trace = mOneWire.getTrace();
+        if (trace != null) {
+            long now = mOneWire.getClock().nanoTime();
+            for (int i = 0; i < slotCount; ++i) {
+                trace.record(now, OneWireTrace.OP_BURST_SLOT, slots[i], mRxSlots[i], mBaudrate);
+            }
+        }
+        decodeSlots(writeCount * 8, dst, offset, slotCount / 8 - writeCount, crc, offset);
+    }
+
+    // Decode the echoed slots from index first on into count bytes. Each echoed slot reads back
+    // as 0xff only if no device pulled the bus low. Bytes from index crcStart of dst on are
+    // added to the CRC8 as soon as they are complete.
+    private void decodeSlots(int first, byte[] dst, int offset, int count, CRC8.Accumulator crc,
+            int crcStart) {
+        for (int i = 0; i < count; ++i) {
+            int slot = first + i * 8;
+            int b = 0;
+            for (int bit = 0; bit < 8; ++bit) {
+                if ((mRxSlots[slot + bit] & 0xff) == 0xff) {
+                    b |= 1 << bit;
+                }
+            }
+            dst[offset + i] = (byte) b;
+            if (crc != null && offset + i >= crcStart) {
+                crc.update(b);
+            }
+        }
+    }
+
+    @Override
+    public int triplet(boolean direction) throws IOException {
+        // Both read slots go out in one burst, and only the direction waits for their echoes.
+        mTxSlots[0] = (byte) 0xff;
+        mTxSlots[1] = (byte) 0xff;
+        uartWriteBytes(mTxSlots, 2);
+        uartReadBytes(mRxSlots, 2);
+        OneWireTrace trace = mOneWire.getTrace();
+        if (trace != null) {
+            long now = mOneWire.getClock().nanoTime();
+            for (int i = 0; i < 2; ++i) {
+                trace.record(now, OneWireTrace.OP_BURST_SLOT, mTxSlots[i], mRxSlots[i],
+                        mBaudrate);
+            }
+        }
+        boolean bit = (mRxSlots[0] & 0xff) == 0xff;
+        boolean complement = (mRxSlots[1] & 0xff) == 0xff;
+        boolean taken = bit != complement ? bit : bit || direction;
+        touchBit(taken);
+        return (bit ? TRIPLET_BIT : 0) | (complement ? TRIPLET_COMPLEMENT : 0)
+                | (taken ? TRIPLET_DIRECTION : 0);
+    }
+
+    /**
+     * Receive UART data through {@link com.google.android.things.pio.UartDeviceCallback}
+     * instead of polling, so that every bit slot completes as soon as its echo arrives.
+     *
+     * @param handler handler to deliver the callbacks on. It must not run on a thread that
+     *                uses this bus, since bus operations block until the data arrives.
+     * @throws IOException
+     */
+    public void enableCallbackReceive(Handler handler) throws IOException {
+        checkOpen();
+        if (mReceiver == null) {
+            UartReceiver receiver = new UartReceiver();
+            mUartDevice.registerUartDeviceCallback(handler, receiver);
+            mReceiver = receiver;
+        }
+    }
+
+    /**
+     * Go back to polling the UART for received data.
+     */
+    public void disableCallbackReceive() {
+        if (mReceiver != null) {
+            if (mUartDevice != null) {
+                mUartDevice.unregisterUartDeviceCallback(mReceiver);
+            }
+            mReceiver = null;
+        }
+    }
+
+    private void checkOpen() {
+        if (mUartDevice == null) {
+            throw new IllegalStateException("Uart device is not open");
+        }
+    }
+
+    private void uartWriteByte(int b) throws IOException {
+        mTxSlots[0] = (byte) b;
+        uartWriteBytes(mTxSlots, 1);
+    }
+
+    // Write exactly count bytes; a burst that the UART only takes in part would lose slots.
+    private void uartWriteBytes(byte[] buffer, int count) throws IOException {
+        checkOpen();
+        int written = mUartDevice.write(buffer, count);
+        while (written < count) {
+            if (written <= 0) {
+                throw new IOException("UART write made no progress");
+            }
+            // UartDevice always writes from the start of the array, so send the rest apart.
+            int left = count - written;
+            System.arraycopy(buffer, written, mTxChunk, 0, left);
+            buffer = mTxChunk;
+            count = left;
+            written = mUartDevice.write(buffer, count);
+        }
+    }
+
+    private int uartReadByte() throws IOException {
+        uartReadBytes(mRxSlots, 1);
+        int b = (mRxSlots[0] & 0xff);
+        return b;
+    }
+
+    // Read exactly count bytes, waiting for the echoes that have not arrived yet.
+    private void uartReadBytes(byte[] buffer, int count) throws IOException {
+        checkOpen();
+        if (mReceiver != null) {
+            if (!mReceiver.read(buffer, count, UART_READ_TIMEOUT_MS)) {
+                recordTimeout();
+                throw new IOException("UART read timeout");
+            }
+            return;
+        }
+        int received = mUartDevice.read(buffer, count);
+        int sleepMillis = 10;
+        while (received < count) {
+            // UartDevice always fills from the start of the array, so collect the rest apart.
+            int read = mUartDevice.read(mRxChunk, count - received);
+            if (read > 0) {
+                System.arraycopy(mRxChunk, 0, buffer, received, read);
+                received += read;
+                continue;
+            }
+            try {
+                mOneWire.getClock().sleep(sleepMillis);
+                sleepMillis = sleepMillis * 2;
+                if (sleepMillis > UART_READ_TIMEOUT_MS) {
+                    recordTimeout();
+                    throw new IOException("UART ReadByte timeout");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for UART data");
+            }
+        }
+    }
+
+    private void recordTimeout() {
+        mOneWire.getStats().increment(OneWireStats.COUNTER_TIMEOUTS);
+        OneWireTrace trace = mOneWire.getTrace();
+        if (trace != null) {
+            trace.record(mOneWire.getClock().nanoTime(), OneWireTrace.OP_TIMEOUT, 0, 0,
+                    mBaudrate);
+        }
+    }
+
+    private void setBaudrate(int baudrate) throws IOException {
+        mUartDevice.setBaudrate(baudrate);
+        mBaudrate = baudrate;
+    }
+
+    @Override
+    public void close() throws IOException {
+        disableCallbackReceive();
+        if (mUartDevice != null) {
+            try {
+                mUartDevice.close();
+                mUartDevice = null;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close UART device", e);
+            }
+        }
+    }
+}
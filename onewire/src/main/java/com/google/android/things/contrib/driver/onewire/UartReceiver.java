@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import android.util.Log;
+
+import com.google.android.things.pio.UartDevice;
+import com.google.android.things.pio.UartDeviceCallback;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Receives UART data from {@link UartDeviceCallback} into a ring buffer, so that readers wake
+ * up as soon as their bytes arrive instead of polling the device.
+ */
+class UartReceiver implements UartDeviceCallback {
+    private static final String TAG = UartReceiver.class.getSimpleName();
+
+    // Must be a power of two.
+    private static final int RING_SIZE = 4096;
+
+    private final byte[] mRing = new byte[RING_SIZE];
+    private final byte[] mChunk = new byte[RING_SIZE];
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mDataAvailable = mLock.newCondition();
+    // Free-running positions, masked when indexing the ring.
+    private int mHead;
+    private int mTail;
+    private int mError;
+
+    @Override
+    public boolean onUartDeviceDataAvailable(UartDevice uart) {
+        try {
+            int read;
+            while ((read = uart.read(mChunk, Math.min(free(), mChunk.length))) > 0) {
+                mLock.lock();
+                try {
+                    for (int i = 0; i < read; ++i) {
+                        mRing[mTail++ & (RING_SIZE - 1)] = mChunk[i];
+                    }
+                    mDataAvailable.signalAll();
+                } finally {
+                    mLock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read UART data", e);
+        }
+        // Keep receiving callbacks.
+        return true;
+    }
+
+    @Override
+    public void onUartDeviceError(UartDevice uart, int error) {
+        Log.w(TAG, "UART error " + error);
+        mLock.lock();
+        try {
+            mError = error;
+            mDataAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private int free() {
+        mLock.lock();
+        try {
+            return RING_SIZE - (mTail - mHead);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Read exactly count bytes into the buffer, waiting until they arrive or the timeout expires.
+     *
+     * @param buffer        array to fill from its start.
+     * @param count         number of bytes to read.
+     * @param timeoutMillis maximum time to wait for all bytes.
+     * @return true if the bytes were read, false if they did not arrive in time.
+     * @throws IOException if the UART reported an error.
+     * @throws InterruptedIOException if the thread was interrupted while waiting.
+     */
+    boolean read(byte[] buffer, int count, long timeoutMillis) throws IOException {
+        long remainingNanos = timeoutMillis * 1000000L;
+        mLock.lock();
+        try {
+            while (mTail - mHead < count) {
+                if (mError != 0) {
+                    int error = mError;
+                    mError = 0;
+                    throw new IOException("UART error " + error);
+                }
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                try {
+                    remainingNanos = mDataAvailable.awaitNanos(remainingNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for UART data");
+                }
+            }
+            for (int i = 0; i < count; ++i) {
+                buffer[i] = mRing[mHead++ & (RING_SIZE - 1)];
+            }
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Discard any bytes received but not read yet.
+     */
+    void clear() {
+        mLock.lock();
+        try {
+            mHead = mTail;
+            mError = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
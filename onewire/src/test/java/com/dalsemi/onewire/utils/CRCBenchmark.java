@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dalsemi.onewire.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the slicing-by-8 CRC8 and CRC16 with the one table lookup per byte loop they
+ * replace, over a log of ROM IDs and DS18B20 scratchpads. Run with {@link #main(String[])}
+ * from the unit test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CRCBenchmark {
+
+    // Size of one log record: an 8-byte ROM ID or a 9-byte scratchpad.
+    @Param({"8", "9"})
+    public int recordSize;
+
+    @Param({"4096"})
+    public int records;
+
+    private static final int[] TABLE8 = new int[256];
+    private static final int[] TABLE16 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            TABLE8[i] = CRC8.compute(i);
+            TABLE16[i] = CRC16.compute(i);
+        }
+    }
+
+    private byte[] mLog;
+    private ByteBuffer mDirectLog;
+
+    @Setup
+    public void setUp() {
+        mLog = new byte[recordSize * records];
+        new Random(1).nextBytes(mLog);
+        mDirectLog = ByteBuffer.allocateDirect(mLog.length);
+        mDirectLog.put(mLog).flip();
+    }
+
+    @Benchmark
+    public int crc8PerRecordTableLoop() {
+        int sum = 0;
+        for (int off = 0; off < mLog.length; off += recordSize) {
+            int crc = 0;
+            for (int i = off; i < off + recordSize; ++i) {
+                crc = TABLE8[(crc ^ mLog[i]) & 0xff];
+            }
+            sum += crc;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int crc8PerRecordSliced() {
+        int sum = 0;
+        for (int off = 0; off < mLog.length; off += recordSize) {
+            sum += CRC8.compute(mLog, off, recordSize);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int crc8BulkTableLoop() {
+        int crc = 0;
+        for (byte b : mLog) {
+            crc = TABLE8[(crc ^ b) & 0xff];
+        }
+        return crc;
+    }
+
+    @Benchmark
+    public int crc8BulkSliced() {
+        return CRC8.compute(mLog);
+    }
+
+    @Benchmark
+    public int crc8BulkSlicedDirect() {
+        return CRC8.compute(mDirectLog);
+    }
+
+    @Benchmark
+    public int crc16BulkTableLoop() {
+        int crc = 0;
+        for (byte b : mLog) {
+            crc = (crc >>> 8) ^ TABLE16[(crc ^ b) & 0xff];
+        }
+        return crc;
+    }
+
+    @Benchmark
+    public int crc16BulkSliced() {
+        return CRC16.compute(mLog);
+    }
+
+    @Benchmark
+    public int crc16BulkSlicedDirect() {
+        return CRC16.compute(mDirectLog);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(CRCBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dalsemi.onewire.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CRCTest {
+
+    private static final byte[] CHECK = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void crc8_checkValue() {
+        assertEquals(0xa1, CRC8.compute(CHECK));
+        // DS18B20 scratchpad with its CRC8 in the last byte.
+        byte[] scratchpad = {0x3e, 0x01, 0x4b, 0x46, 0x7f, (byte) 0xff, 0x0c, 0x10, (byte) 0xb0};
+        assertEquals(0xb0, CRC8.compute(scratchpad, 0, 8));
+        assertEquals(0, CRC8.compute(scratchpad));
+    }
+
+    @Test
+    public void crc16_checkValue() {
+        assertEquals(0xbb3d, CRC16.compute(CHECK));
+    }
+
+    @Test
+    public void crc16_invertedCrcGivesResidue() {
+        byte[] data = new byte[34];
+        new Random(16).nextBytes(data);
+        int crc = ~CRC16.compute(data, 0, 32) & 0xffff;
+        data[32] = (byte) crc;
+        data[33] = (byte) (crc >>> 8);
+        assertEquals(CRC16.VALID_RESIDUE, CRC16.compute(data));
+    }
+
+    @Test
+    public void crc8_slicingMatchesBytewise() {
+        Random random = new Random(8);
+        byte[] data = new byte[100];
+        random.nextBytes(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+        for (int off = 0; off < 9; ++off) {
+            for (int len = 0; off + len <= data.length; ++len) {
+                int seed = random.nextInt(256);
+                int expected = seed;
+                for (int i = off; i < off + len; ++i) {
+                    expected = CRC8.compute(data[i], expected);
+                }
+                assertEquals(expected, CRC8.compute(data, off, len, seed));
+                direct.limit(off + len).position(off);
+                assertEquals(expected, CRC8.compute(direct, seed));
+                assertEquals(off, direct.position());
+                ByteBuffer heap = ByteBuffer.wrap(data, off, len).slice();
+                assertEquals(expected, CRC8.compute(heap, seed));
+            }
+        }
+    }
+
+    @Test
+    public void crc16_slicingMatchesBytewise() {
+        Random random = new Random(16);
+        byte[] data = new byte[100];
+        random.nextBytes(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+        for (int off = 0; off < 9; ++off) {
+            for (int len = 0; off + len <= data.length; ++len) {
+                int seed = random.nextInt(65536);
+                int expected = seed;
+                for (int i = off; i < off + len; ++i) {
+                    expected = CRC16.compute(data[i], expected);
+                }
+                assertEquals(expected, CRC16.compute(data, off, len, seed));
+                direct.limit(off + len).position(off);
+                assertEquals(expected, CRC16.compute(direct, seed));
+                assertEquals(off, direct.position());
+                ByteBuffer heap = ByteBuffer.wrap(data, off, len).slice();
+                assertEquals(expected, CRC16.compute(heap, seed));
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceHealthTest {
+
+    @Test
+    public void failure_backsOffExponentially() {
+        DeviceHealth health = new DeviceHealth();
+        health.setBackoff(100, 350);
+        long now = 1000;
+        health.recordFailure(now);
+        assertEquals(DeviceHealth.STATE_BACKING_OFF, health.getState(now));
+        assertFalse(health.isAvailable(now + 99));
+        assertTrue(health.isAvailable(now + 100));
+
+        now += 100;
+        health.recordFailure(now);
+        assertFalse(health.isAvailable(now + 199));
+        assertTrue(health.isAvailable(now + 200));
+
+        now += 200;
+        health.recordFailure(now);
+        // Capped at the maximum backoff.
+        assertFalse(health.isAvailable(now + 349));
+        assertTrue(health.isAvailable(now + 350));
+        assertEquals(3, health.getConsecutiveFailures());
+    }
+
+    @Test
+    public void success_endsBackoff() {
+        DeviceHealth health = new DeviceHealth();
+        health.recordFailure(0);
+        health.recordSuccess(DeviceHealth.DEFAULT_INITIAL_BACKOFF_MS);
+        assertEquals(0, health.getConsecutiveFailures());
+        assertEquals(DeviceHealth.STATE_HEALTHY,
+                health.getState(DeviceHealth.DEFAULT_INITIAL_BACKOFF_MS));
+        assertEquals(0.5f, health.getErrorRate(), 0);
+    }
+
+    @Test
+    public void errorRate_quarantinesDevice() {
+        DeviceHealth health = new DeviceHealth();
+        health.setBackoff(0, 0);
+        health.setQuarantine(0.5f, 1000);
+        long now = 0;
+        // Alternate successes and failures until the history is long enough.
+        for (int i = 0; i < DeviceHealth.MIN_HISTORY - 1; ++i) {
+            if ((i & 1) == 0) {
+                health.recordSuccess(now);
+            } else {
+                health.recordFailure(now);
+            }
+            assertTrue(health.getState(now) != DeviceHealth.STATE_QUARANTINED);
+        }
+        health.recordFailure(now);
+        assertEquals(DeviceHealth.STATE_QUARANTINED, health.getState(now));
+        assertFalse(health.isAvailable(now + 999));
+        assertTrue(health.isAvailable(now + 1000));
+
+        // A failed probe puts the device back in quarantine.
+        now += 1000;
+        health.recordFailure(now);
+        assertEquals(DeviceHealth.STATE_QUARANTINED, health.getState(now));
+        assertFalse(health.isAvailable(now + 999));
+
+        // A good probe releases it with a clean history.
+        now += 1000;
+        health.recordSuccess(now);
+        assertEquals(DeviceHealth.STATE_HEALTHY, health.getState(now));
+        assertEquals(0f, health.getErrorRate(), 0);
+    }
+}
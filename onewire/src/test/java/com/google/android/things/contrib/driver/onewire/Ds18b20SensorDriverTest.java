@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class Ds18b20SensorDriverTest {
+
+    private static final long ID_A = 0x28000000000001a1L;
+    private static final long ID_B = 0x28000000000002b2L;
+    private static final long ID_C = 0x28000000000003c3L;
+
+    @Test
+    public void uuidOf_isStablePerRomId() {
+        long id = 0x28ffd7468114020cL;
+        assertEquals(Ds18b20SensorDriver.uuidOf(id), Ds18b20SensorDriver.uuidOf(id));
+        assertFalse(Ds18b20SensorDriver.uuidOf(id).equals(
+                Ds18b20SensorDriver.uuidOf(0x28ff22da801603efL)));
+        // Name-based, so independent of the process that computes it.
+        assertEquals(3, Ds18b20SensorDriver.uuidOf(id).version());
+    }
+
+    @Test
+    public void busWatcher_registersAddedAndUnregistersRemovedSensors() throws Exception {
+        WatchedDriver driver = new WatchedDriver(0);
+        try {
+            driver.startBusWatcher(1);
+            driver.scan(ID_A, ID_B);
+            assertEquals(uuids(ID_A, ID_B), driver.mRegistered);
+
+            driver.scan(ID_B, ID_C);
+            assertEquals(uuids(ID_B, ID_C), driver.mRegistered);
+
+            driver.stopBusWatcher();
+            assertEquals(uuids(), driver.mRegistered);
+        } finally {
+            driver.close();
+        }
+    }
+
+    @Test
+    public void busWatcher_skipsExplicitlyRegisteredSensor() throws Exception {
+        WatchedDriver driver = new WatchedDriver(ID_B);
+        try {
+            driver.registerTemperatureSensor();
+            driver.startBusWatcher(1);
+            driver.scan(ID_A, ID_B);
+            assertEquals(uuids(ID_B, ID_A), driver.mRegistered);
+
+            // The watcher takes over once the explicit sensor is gone.
+            driver.unregisterTemperatureSensor();
+            driver.scan(ID_A, ID_B);
+            assertEquals(uuids(ID_A, ID_B), driver.mRegistered);
+        } finally {
+            driver.close();
+        }
+    }
+
+    @Test
+    public void registerTemperatureSensor_replacesBusSensor() throws Exception {
+        WatchedDriver driver = new WatchedDriver(ID_A);
+        try {
+            driver.startBusWatcher(1);
+            driver.scan(ID_A);
+            driver.registerTemperatureSensor();
+            assertEquals(uuids(ID_A), driver.mRegistered);
+
+            driver.scan(ID_A);
+            assertEquals(uuids(ID_A), driver.mRegistered);
+        } finally {
+            driver.close();
+        }
+    }
+
+    @Test
+    public void read_reportsNoDataBeforeFirstSample() throws IOException {
+        Ds18b20SensorDriver driver = new Ds18b20SensorDriver("UART0", ID_A);
+        try {
+            driver.new TemperatureUserDriver(ID_A).read();
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            // Reported right away instead of reading the sensor.
+        } finally {
+            driver.close();
+        }
+    }
+
+    private static List<UUID> uuids(long... ids) {
+        List<UUID> uuids = new ArrayList<>();
+        for (long id : ids) {
+            uuids.add(Ds18b20SensorDriver.uuidOf(id));
+        }
+        return uuids;
+    }
+
+    // Driver whose bus scans return the IDs handed to scan(), and that records the UUIDs of
+    // the registered sensors instead of registering them with the framework.
+    private static class WatchedDriver extends Ds18b20SensorDriver {
+        final List<UUID> mRegistered = new ArrayList<>();
+        private final SynchronousQueue<long[]> mScans = new SynchronousQueue<>();
+        // Released when a scan starts after the results of the previous one were applied.
+        private final Semaphore mApplied = new Semaphore(0);
+        private int mScanCount;
+
+        WatchedDriver(long id) throws IOException {
+            super("UART0", id);
+        }
+
+        // Answer the pending scan with the given IDs and wait until the watcher applied them.
+        void scan(long... ids) throws InterruptedException {
+            mScans.put(ids);
+            mApplied.acquire();
+        }
+
+        @Override
+        long[] scanBus() throws IOException {
+            if (mScanCount++ > 0) {
+                mApplied.release();
+            }
+            try {
+                return mScans.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        void registerUserSensor(TemperatureUserDriver driver) {
+            synchronized (mRegistered) {
+                mRegistered.add(driver.getUuid());
+            }
+        }
+
+        @Override
+        void unregisterUserSensor(TemperatureUserDriver driver) {
+            synchronized (mRegistered) {
+                mRegistered.remove(driver.getUuid());
+            }
+        }
+    }
+}
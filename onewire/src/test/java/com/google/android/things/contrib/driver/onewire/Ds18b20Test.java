@@ -16,25 +16,41 @@
 
 package com.google.android.things.contrib.driver.onewire;
 
+import android.os.Handler;
+
+import com.dalsemi.onewire.utils.CRC8;
 import com.google.android.things.pio.UartDevice;
+import com.google.android.things.pio.UartDeviceCallback;
 
 import junit.framework.Assert;
 
+import org.junit.Assume;
+import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.verification.VerificationMode;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 import static junit.framework.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.byteThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.times;
@@ -50,6 +66,17 @@ public class Ds18b20Test {
     @Rule
     public ExpectedException mExpectedException = ExpectedException.none();
 
+    @Before
+    public void setUp() throws IOException {
+        // Like a UART with room in its transmit buffer, take every write whole.
+        Mockito.when(mUart.write(any(byte[].class), anyInt())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                return (Integer) invocation.getArguments()[1];
+            }
+        });
+    }
+
     @Test
     public void close() throws IOException {
         Ds18b20 ds18b20 = new Ds18b20(mUart);
@@ -111,6 +138,264 @@ public class Ds18b20Test {
         Mockito.verify(mUart).setBaudrate(115200);
     }
 
+    @Test
+    public void oneWire_writeByteIsOneBurst() throws IOException {
+        OneWire oneWire = new OneWire(mUart);
+        // Device pulls bit slots 1 and 7 low while master writes 0xff.
+        final byte[] echo = {(byte) 0xff, (byte) 0xfe, (byte) 0xff, (byte) 0xff,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xf0};
+        Mockito.when(mUart.read(any(byte[].class), anyInt())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                byte[] buffer = (byte[]) invocation.getArguments()[0];
+                int length = (Integer) invocation.getArguments()[1];
+                System.arraycopy(echo, 0, buffer, 0, length);
+                return length;
+            }
+        });
+        assertEquals((byte) 0x7d, oneWire.oneWireWriteByte((byte) 0xff));
+        assertArrayEquals(new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff}, writtenBytes(8));
+        Mockito.verify(mUart, times(1)).read(any(byte[].class), eq(8));
+    }
+
+    @Test
+    public void oneWire_writeByteEncodesLsbFirst() throws IOException {
+        OneWire oneWire = new OneWire(mUart);
+        Mockito.when(mUart.read(any(byte[].class), eq(8))).thenReturn(8);
+        oneWire.oneWireWriteByte((byte) 0x55);
+        assertArrayEquals(new byte[]{(byte) 0xff, 0x00, (byte) 0xff, 0x00,
+                (byte) 0xff, 0x00, (byte) 0xff, 0x00}, writtenBytes(8));
+    }
+
+    @Test
+    public void oneWire_writeResendsRestOfShortWrite() throws IOException {
+        OneWire oneWire = new OneWire(mUart);
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        // The UART takes at most 3 bytes per write.
+        Mockito.when(mUart.write(any(byte[].class), anyInt())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                byte[] buffer = (byte[]) invocation.getArguments()[0];
+                int length = Math.min(3, (Integer) invocation.getArguments()[1]);
+                written.write(buffer, 0, length);
+                return length;
+            }
+        });
+        Mockito.when(mUart.read(any(byte[].class), eq(8))).thenReturn(8);
+        oneWire.oneWireWriteByte((byte) 0x55);
+        assertArrayEquals(new byte[]{(byte) 0xff, 0x00, (byte) 0xff, 0x00,
+                (byte) 0xff, 0x00, (byte) 0xff, 0x00}, written.toByteArray());
+        Mockito.verify(mUart, times(3)).write(any(byte[].class), anyInt());
+    }
+
+    @Test
+    public void oneWire_writeThrowsWithoutProgress() throws IOException {
+        OneWire oneWire = new OneWire(mUart);
+        Mockito.when(mUart.write(any(byte[].class), anyInt())).thenReturn(0);
+        mExpectedException.expect(IOException.class);
+        mExpectedException.expectMessage("no progress");
+        oneWire.oneWireWriteByte((byte) 0x55);
+    }
+
+    @Test
+    public void oneWire_transactionIsOneBurst() throws IOException {
+        OneWire oneWire = new OneWire(mUart);
+        loopbackUart();
+        byte[] response = oneWire.oneWireTransaction(Ds18b20.DS18X20_READ, 0x28ffd7468114020cL, 2);
+        Assert.assertTrue(Arrays.equals(new byte[]{(byte) 0xff, (byte) 0xff}, response));
+        // One reset and one burst of MATCH_ROM, 8 ID bytes, the command and 2 read bytes.
+        Mockito.verify(mUart).write(any(byte[].class), eq(1));
+        Mockito.verify(mUart).write(any(byte[].class), eq((1 + 8 + 1 + 2) * 8));
+        Mockito.verify(mUart, times(2)).write(any(byte[].class), anyInt());
+    }
+
+    @Test
+    public void readTemperature_fillsCallerBuffers() throws IOException {
+        byte[] scratchpad = {0x3e, 0x01, 0x4b, 0x46, 0x7f, (byte) 0xff, 0x0c, 0x10, (byte) 0xb0};
+        OneWire oneWire = new OneWire(new ScratchpadUartDevice(scratchpad));
+        byte[] bytes = new byte[12];
+        oneWire.oneWireTransaction(Ds18b20.DS18X20_READ, 0, bytes, 3, 9);
+        Assert.assertTrue(Arrays.equals(scratchpad, Arrays.copyOfRange(bytes, 3, 12)));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(9);
+        oneWire.oneWireCommand(Ds18b20.DS18X20_READ, 0);
+        oneWire.oneWireReadBytes(direct, 9);
+        assertEquals(9, direct.position());
+        direct.flip();
+        assertEquals(ByteBuffer.wrap(scratchpad), direct);
+    }
+
+    @Test
+    public void readTemperature_doesNotAllocate() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+
+        byte[] scratchpad = {0x3e, 0x01, 0x4b, 0x46, 0x7f, (byte) 0xff, 0x0c, 0x10, (byte) 0xb0};
+        Ds18b20 ds18b20 = new Ds18b20(new ScratchpadUartDevice(scratchpad));
+        float sum = 0;
+        // Warm up class loading and the interpreter before counting.
+        for (int i = 0; i < 100; ++i) {
+            sum += ds18b20.readTemperature();
+        }
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; ++i) {
+            sum += ds18b20.readTemperature();
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertEquals(19.875f * 1100, sum);
+        // A few bytes of slack for the counter itself; a single allocating reading costs more.
+        Assert.assertTrue("Allocated " + allocated + " bytes", allocated < 1000);
+    }
+
+    @Test
+    public void oneWire_callbackReceiveWakesOnData() throws Exception {
+        final OneWire oneWire = new OneWire(mUart);
+        loopbackUart();
+        oneWire.enableCallbackReceive(Mockito.mock(Handler.class));
+        ArgumentCaptor<UartDeviceCallback> callback = ArgumentCaptor.forClass(UartDeviceCallback.class);
+        Mockito.verify(mUart).registerUartDeviceCallback(any(Handler.class), callback.capture());
+
+        // Deliver the reset echo from another thread while the bus waits for it.
+        final UartDeviceCallback receiver = callback.getValue();
+        Thread uartThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ignored) {
+                }
+                receiver.onUartDeviceDataAvailable(mUart);
+            }
+        });
+        uartThread.start();
+        Assert.assertTrue(oneWire.reset());
+        uartThread.join();
+
+        oneWire.close();
+        Mockito.verify(mUart).unregisterUartDeviceCallback(receiver);
+    }
+
+    @Test
+    public void oneWire_callbackReceiveTimesOut() throws IOException {
+        OneWire oneWire = new OneWire(mUart);
+        oneWire.enableCallbackReceive(Mockito.mock(Handler.class));
+        mExpectedException.expect(IOException.class);
+        mExpectedException.expectMessage("timeout");
+        oneWire.reset();
+    }
+
+    @Test
+    public void oneWire_readInterrupted() throws IOException {
+        OneWire oneWire = new OneWire(mUart);
+        Thread.currentThread().interrupt();
+        try {
+            oneWire.reset();
+            Assert.fail("Expected InterruptedIOException");
+        } catch (InterruptedIOException expected) {
+            // Interrupt status is kept for the caller.
+            Assert.assertTrue(Thread.interrupted());
+        }
+    }
+
+    @Test
+    public void startConversion_collectsResultWhenReady() throws IOException {
+        byte[] scratchpad = {0x3e, 0x01, 0x4b, 0x46, 0x7f, (byte) 0xff, 0x0c, 0x10, (byte) 0xb0};
+        ScratchpadUartDevice uart = new ScratchpadUartDevice(scratchpad);
+        Ds18b20 ds18b20 = new Ds18b20(uart, 0x28ffd7468114020cL);
+        long start = System.nanoTime();
+        Ds18b20.Conversion conversion = ds18b20.startConversion();
+        assertEquals(1, uart.getConversions());
+        Assert.assertTrue(conversion.getReadyTimeNanos() - start
+                >= Ds18b20.conversionTimeMillis(Ds18b20.RESOLUTION_12_BIT) * 1000000L);
+        Assert.assertTrue(conversion.getDelayMillis() > 0);
+        assertEquals(19.875f, ds18b20.collectResult(conversion), 0);
+        assertEquals(0, conversion.getDelayMillis());
+        Assert.assertTrue(System.nanoTime() - conversion.getReadyTimeNanos() >= 0);
+    }
+
+    @Test
+    public void readTemperature_retriesCorruptedScratchpad() throws IOException {
+        byte[] scratchpad = {0x3e, 0x01, 0x4b, 0x46, 0x7f, (byte) 0xff, 0x0c, 0x10, (byte) 0xb0};
+        ScratchpadUartDevice uart = new ScratchpadUartDevice(scratchpad);
+        Ds18b20 ds18b20 = new Ds18b20(uart, 0x28ffd7468114020cL);
+        uart.corruptReads(Ds18b20.READ_RETRIES);
+        assertEquals(19.875f, ds18b20.readTemperature());
+        assertEquals(Ds18b20.READ_RETRIES + 1, uart.getReads());
+    }
+
+    @Test
+    public void readTemperature_recordsStats() throws IOException {
+        byte[] scratchpad = {0x3e, 0x01, 0x4b, 0x46, 0x7f, (byte) 0xff, 0x0c, 0x10, (byte) 0xb0};
+        ScratchpadUartDevice uart = new ScratchpadUartDevice(scratchpad);
+        Ds18b20 ds18b20 = new Ds18b20(uart);
+        uart.corruptReads(1);
+        assertEquals(19.875f, ds18b20.readTemperature());
+
+        OneWireStats.Snapshot stats = ds18b20.getStats().snapshot();
+        assertEquals(3, stats.getCounter(OneWireStats.COUNTER_RESETS));
+        assertEquals(0, stats.getCounter(OneWireStats.COUNTER_PRESENCE_FAILURES));
+        // SKIP_ROM and CONVERT_T, then SKIP_ROM, READ and the scratchpad twice.
+        assertEquals(2 + 2 * 11, stats.getCounter(OneWireStats.COUNTER_BYTES));
+        Assert.assertTrue(stats.getCounter(OneWireStats.COUNTER_BIT_SLOTS) > 24 * 8);
+        assertEquals(1, stats.getCounter(OneWireStats.COUNTER_CRC_FAILURES));
+        assertEquals(1, stats.getCounter(OneWireStats.COUNTER_RETRIES));
+        assertEquals(0, stats.getCounter(OneWireStats.COUNTER_TIMEOUTS));
+        assertEquals(3, stats.getCount(OneWireStats.HISTOGRAM_RESET));
+        assertEquals(3, stats.getCount(OneWireStats.HISTOGRAM_TRANSACTION));
+        assertEquals(1, stats.getCount(OneWireStats.HISTOGRAM_CONVERSION));
+
+        ds18b20.getStats().reset();
+        assertEquals(0, ds18b20.getStats().getCounter(OneWireStats.COUNTER_BYTES));
+    }
+
+    @Test
+    public void readTemperatures_marksPersistentlyCorruptedSensors() throws IOException {
+        byte[] scratchpad = {0x3e, 0x01, 0x4b, 0x46, 0x7f, (byte) 0xff, 0x0c, 0x10, (byte) 0xb0};
+        ScratchpadUartDevice uart = new ScratchpadUartDevice(scratchpad);
+        long[] ids = {0x28ffd7468114020cL, 0x28ff22da801603efL};
+        Ds18b20Bus bus = new Ds18b20Bus(uart, ids);
+        uart.corruptReads(Ds18b20.READ_RETRIES + 1);
+        int[] raws = new int[2];
+        assertEquals(1, bus.readRawTemperatures(raws));
+        assertArrayEquals(new int[]{Ds18b20.INVALID_RAW_TEMPERATURE, 318}, raws);
+    }
+
+    @Test
+    public void readTemperatures_skipsFailingSensor() throws IOException {
+        byte[] scratchpad = {0x3e, 0x01, 0x4b, 0x46, 0x7f, (byte) 0xff, 0x0c, 0x10, (byte) 0xb0};
+        ScratchpadUartDevice uart = new ScratchpadUartDevice(scratchpad);
+        long[] ids = {0x28ffd7468114020cL, 0x28ff22da801603efL};
+        Ds18b20Bus bus = new Ds18b20Bus(uart, ids);
+        bus.getHealth(0).setBackoff(60 * 1000, 60 * 1000);
+        uart.corruptReads(Ds18b20.READ_RETRIES + 1);
+        float[] temperatures = bus.readTemperatures();
+        Assert.assertTrue(Float.isNaN(temperatures[0]));
+        assertEquals(19.875f, temperatures[1]);
+
+        // The failing sensor costs no bus time while it backs off.
+        int reads = uart.getReads();
+        temperatures = bus.readTemperatures();
+        Assert.assertTrue(Float.isNaN(temperatures[0]));
+        assertEquals(19.875f, temperatures[1]);
+        assertEquals(reads + 1, uart.getReads());
+        assertEquals(DeviceHealth.STATE_BACKING_OFF,
+                bus.getHealth(0).getState(System.nanoTime() / 1000000));
+    }
+
+    @Test
+    public void readTemperatures_convertsOnceForAllSensors() throws IOException {
+        byte[] scratchpad = {0x3e, 0x01, 0x4b, 0x46, 0x7f, (byte) 0xff, 0x0c, 0x10, (byte) 0xb0};
+        ScratchpadUartDevice uart = new ScratchpadUartDevice(scratchpad);
+        long[] ids = {0x28ffd7468114020cL, 0x28ff22da801603efL, 0x28ff64d2b01604dbL};
+        Ds18b20Bus bus = new Ds18b20Bus(uart, ids);
+        float[] temperatures = bus.readTemperatures();
+        Assert.assertTrue(Arrays.equals(new float[]{19.875f, 19.875f, 19.875f}, temperatures));
+        assertEquals(1, uart.getConversions());
+    }
+
     @Test
     public void convertTemperatureValid() throws IOException {
         Ds18b20 ds18b20 = new Ds18b20(mUart);
@@ -147,6 +432,55 @@ public class Ds18b20Test {
 
     }
 
+    @Test
+    public void conversionTimeDependsOnResolution() {
+        assertEquals(94L, Ds18b20.conversionTimeMillis(Ds18b20.RESOLUTION_9_BIT));
+        assertEquals(188L, Ds18b20.conversionTimeMillis(Ds18b20.RESOLUTION_10_BIT));
+        assertEquals(375L, Ds18b20.conversionTimeMillis(Ds18b20.RESOLUTION_11_BIT));
+        assertEquals(750L, Ds18b20.conversionTimeMillis(Ds18b20.RESOLUTION_12_BIT));
+    }
+
+    @Test
+    public void decodeTemperatureDropsUndefinedBits() throws IOException {
+        // 19.875 celsius, 9-bit configuration.
+        byte[] raw = {0x3e, 0x01, 0x4b, 0x46, 0x1f, (byte) 0xff, 0x0c, 0x10, 0};
+        raw[8] = (byte) CRC8.compute(raw, 0, 8);
+        assertEquals(Ds18b20.RESOLUTION_9_BIT, Ds18b20.resolutionOf(raw));
+        assertEquals(19.5f, Ds18b20.decodeTemperature(raw, Ds18b20.RESOLUTION_9_BIT));
+        assertEquals(19.75f, Ds18b20.decodeTemperature(raw, Ds18b20.RESOLUTION_10_BIT));
+        assertEquals(19.875f, Ds18b20.decodeTemperature(raw, Ds18b20.RESOLUTION_12_BIT));
+    }
+
+    @Test
+    public void decodeRawTemperature() throws IOException {
+        byte[] raw = {0x5e, (byte) 0xff, 0, 0, 0, 0, 0, 0, (byte) 0xa2};
+        assertEquals(-162, Ds18b20.decodeRawTemperature(raw, 0, Ds18b20.RESOLUTION_12_BIT));
+        assertEquals(-168, Ds18b20.decodeRawTemperature(raw, 0, Ds18b20.RESOLUTION_9_BIT));
+        mExpectedException.expect(IOException.class);
+        raw[0] ^= 1;
+        Ds18b20.decodeRawTemperature(raw, 0, Ds18b20.RESOLUTION_12_BIT);
+    }
+
+    @Test
+    public void decodeRawTemperatures_marksInvalidScratchpads() {
+        byte[] log = {
+                0x3e, 0x01, 0x4b, 0x46, 0x7f, (byte) 0xff, 0x0c, 0x10, (byte) 0xb0,
+                0x3e, 0x01, 0x4b, 0x46, 0x7f, (byte) 0xff, 0x0c, 0x10, (byte) 0xb1,
+                (byte) 0xd0, 0x07, 0, 0, 0, 0, 0, 0, 0x3c,
+        };
+        int[] raws = new int[4];
+        assertEquals(2, Ds18b20.decodeRawTemperatures(log, 0, 3, Ds18b20.RESOLUTION_12_BIT,
+                raws, 1));
+        assertArrayEquals(new int[]{0, 318, Ds18b20.INVALID_RAW_TEMPERATURE, 2000}, raws);
+    }
+
+    @Test
+    public void setResolution_rejectsInvalid() throws IOException {
+        Ds18b20 ds18b20 = new Ds18b20(mUart);
+        mExpectedException.expect(IllegalArgumentException.class);
+        ds18b20.setResolution(8);
+    }
+
     @Test
     public void convertByteBuffer() throws IOException {
         byte[] address = {0x28, (byte) 0xff, (byte) 0xd7, 0x46, (byte) 0x81, 0x14, 0x02, 0x0c};
@@ -162,4 +496,44 @@ public class Ds18b20Test {
         short tempShort = tempBuff.getShort();
         assertEquals(22.9375f, tempShort/16f);
     }
+
+    // The slots of the one UART write of the given length. The driver writes from a buffer
+    // sized for the longest burst, so only the first length bytes are compared.
+    private byte[] writtenBytes(int length) throws IOException {
+        ArgumentCaptor<byte[]> buffer = ArgumentCaptor.forClass(byte[].class);
+        Mockito.verify(mUart).write(buffer.capture(), eq(length));
+        return Arrays.copyOf(buffer.getValue(), length);
+    }
+
+    // Loop UART writes back to reads like an idle bus, answering resets with a presence pulse.
+    private void loopbackUart() throws IOException {
+        final ArrayDeque<Byte> pending = new ArrayDeque<>();
+        Mockito.when(mUart.write(any(byte[].class), anyInt())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                byte[] buffer = (byte[]) invocation.getArguments()[0];
+                int length = (Integer) invocation.getArguments()[1];
+                if (length == 1 && buffer[0] == (byte) 0xf0) {
+                    pending.add((byte) 0xe0);
+                    return 1;
+                }
+                for (int i = 0; i < length; ++i) {
+                    pending.add(buffer[i]);
+                }
+                return length;
+            }
+        });
+        Mockito.when(mUart.read(any(byte[].class), anyInt())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                byte[] buffer = (byte[]) invocation.getArguments()[0];
+                int length = (Integer) invocation.getArguments()[1];
+                int count = 0;
+                while (count < length && !pending.isEmpty()) {
+                    buffer[count++] = pending.poll();
+                }
+                return count;
+            }
+        });
+    }
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import com.dalsemi.onewire.utils.CRC8;
+import com.google.android.things.pio.I2cDevice;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+
+public class Ds2482BusMasterTest {
+
+    @Rule
+    public ExpectedException mExpectedException = ExpectedException.none();
+
+    @Test
+    public void open_resetsAndConfiguresBridge() throws IOException {
+        List<byte[]> commands = new ArrayList<>();
+        I2cDevice i2c = mockBridge(commands, Ds2482BusMaster.STATUS_RST,
+                Ds2482BusMaster.CONFIG_APU);
+        new Ds2482BusMaster(i2c);
+
+        assertEquals(3, commands.size());
+        assertArrayEquals(new byte[]{(byte) 0xf0}, commands.get(0));
+        assertArrayEquals(new byte[]{(byte) 0xe1, (byte) 0xf0}, commands.get(1));
+        // Active pullup, with the upper nibble complementing the lower one.
+        assertArrayEquals(new byte[]{(byte) 0xd2, (byte) 0xe1}, commands.get(2));
+    }
+
+    @Test
+    public void open_failsWithoutReset() throws IOException {
+        I2cDevice i2c = mockBridge(new ArrayList<byte[]>(), 0);
+        try {
+            new Ds2482BusMaster(i2c);
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            Mockito.verify(i2c).close();
+        }
+    }
+
+    @Test
+    public void touchBytes_isOneCommandPerByte() throws IOException {
+        List<byte[]> commands = new ArrayList<>();
+        // Reset and configuration, then idle status, the data byte read and idle status.
+        I2cDevice i2c = mockBridge(commands, Ds2482BusMaster.STATUS_RST,
+                Ds2482BusMaster.CONFIG_APU, 0, 0, 0x5a);
+        Ds2482BusMaster master = new Ds2482BusMaster(i2c);
+        commands.clear();
+        byte[] data = {(byte) 0xcc, (byte) 0xff};
+        master.touchBytes(data, 0, 2);
+
+        assertEquals(3, commands.size());
+        assertArrayEquals(new byte[]{(byte) 0xa5, (byte) 0xcc}, commands.get(0));
+        assertArrayEquals(new byte[]{(byte) 0x96}, commands.get(1));
+        assertArrayEquals(new byte[]{(byte) 0xe1, (byte) 0xe1}, commands.get(2));
+        assertArrayEquals(new byte[]{(byte) 0xcc, 0x5a}, data);
+    }
+
+    @Test
+    public void touchBytes_addsReadBytesToCrc() throws IOException {
+        // Reset and configuration, then the idle status after the write, and the idle status
+        // and the byte for each read.
+        I2cDevice i2c = mockBridge(new ArrayList<byte[]>(), Ds2482BusMaster.STATUS_RST,
+                Ds2482BusMaster.CONFIG_APU, 0, 0, 0x5a, 0, 0xa5);
+        Ds2482BusMaster master = new Ds2482BusMaster(i2c);
+        byte[] data = {(byte) 0xcc, (byte) 0xff, (byte) 0xff};
+        CRC8.Accumulator crc = new CRC8.Accumulator();
+        master.touchBytes(data, 0, 3, crc, 1);
+
+        assertArrayEquals(new byte[]{(byte) 0xcc, 0x5a, (byte) 0xa5}, data);
+        assertEquals(CRC8.compute(data, 1, 2), crc.getValue());
+    }
+
+    @Test
+    public void reset_throwsOnShort() throws IOException {
+        I2cDevice i2c = mockBridge(new ArrayList<byte[]>(), Ds2482BusMaster.STATUS_RST,
+                Ds2482BusMaster.CONFIG_APU, Ds2482BusMaster.STATUS_1WB,
+                Ds2482BusMaster.STATUS_SD);
+        Ds2482BusMaster master = new Ds2482BusMaster(i2c);
+        mExpectedException.expect(IOException.class);
+        mExpectedException.expectMessage("short");
+        master.reset();
+    }
+
+    @Test
+    public void reset_timesOutWhileBusy() throws IOException {
+        int[] reads = new int[2 + Ds2482BusMaster.MAX_BUSY_POLLS];
+        Arrays.fill(reads, Ds2482BusMaster.STATUS_1WB);
+        reads[0] = Ds2482BusMaster.STATUS_RST;
+        reads[1] = Ds2482BusMaster.CONFIG_APU;
+        OneWire oneWire = new OneWire(new Ds2482BusMaster(
+                mockBridge(new ArrayList<byte[]>(), reads)));
+        try {
+            oneWire.reset();
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            assertEquals(1, oneWire.getStats().getCounter(OneWireStats.COUNTER_TIMEOUTS));
+        }
+    }
+
+    @Test
+    public void searchRoms_enumeratesThroughBridge() throws IOException {
+        SimulatedOneWireBus bus = SimulatedOneWireBusTest.newBus(8);
+        OneWire oneWire = new OneWire(new Ds2482BusMaster(new SimulatedDs2482(bus)));
+        long[] found = oneWire.searchRoms(Ds18b20.FAMILY_CODE);
+        Arrays.sort(found);
+        long[] expected = new long[8];
+        for (int i = 0; i < expected.length; ++i) {
+            expected[i] = bus.getDevices().get(i).getId();
+        }
+        Arrays.sort(expected);
+        assertArrayEquals(expected, found);
+    }
+
+    @Test
+    public void searchNext_isOneTripletPerBit() throws IOException {
+        SimulatedOneWireBus bus = SimulatedOneWireBusTest.newBus(3);
+        SimulatedDs2482 bridge = new SimulatedDs2482(bus);
+        OneWire oneWire = new OneWire(new Ds2482BusMaster(bridge));
+        int writes = bridge.getWrites();
+        assertTrue(oneWire.searchNext(new RomSearch()) != 0);
+        // Reset, SEARCH_ROM, then one triplet command per ROM bit.
+        assertEquals(1 + 1 + 64, bridge.getWrites() - writes);
+    }
+
+    @Test
+    public void oneWireFrame_isNotEncodedForBridge() throws IOException {
+        SimulatedOneWireBus bus = SimulatedOneWireBusTest.newBus(1);
+        OneWire oneWire = new OneWire(new Ds2482BusMaster(new SimulatedDs2482(bus)));
+        long id = bus.getDevices().get(0).getId();
+        CommandFrame frame = oneWire.oneWireFrame(Ds18b20.DS18X20_READ, id,
+                Ds18b20.SCRATCHPAD_SIZE);
+        assertNull(frame.mSlots);
+        byte[] scratchpad = new byte[Ds18b20.SCRATCHPAD_SIZE];
+        assertTrue(oneWire.oneWireCheckedTransaction(frame, scratchpad, 0, 0));
+    }
+
+    @Test
+    public void readRawTemperatures_throughBridge() throws IOException {
+        SimulatedOneWireBus bus = SimulatedOneWireBusTest.newBus(4);
+        SimulatedDs2482 bridge = new SimulatedDs2482(bus);
+        Ds18b20Bus sampler = new Ds18b20Bus(new Ds2482BusMaster(bridge));
+        assertEquals(4, sampler.getOneWireIds().length);
+
+        int writes = bridge.getWrites();
+        int[] raws = new int[4];
+        assertEquals(4, sampler.readRawTemperatures(raws));
+        for (int i = 0; i < raws.length; ++i) {
+            SimulatedOneWireBus.Device device = bus.getDevices().get(i);
+            int index = Arrays.asList(box(sampler.getOneWireIds())).indexOf(device.getId());
+            assertEquals((20 + i) * 16, raws[index]);
+        }
+        // Reset, SKIP_ROM and CONVERT_T, one conversion poll, then per sensor a reset, ten
+        // written bytes and nine read bytes that also set the read pointer. ID bytes of 0xff
+        // are sent as reads.
+        int ffBytes = 0;
+        for (long id : sampler.getOneWireIds()) {
+            for (int i = 0; i < 8; ++i) {
+                ffBytes += ((id >>> (i * 8)) & 0xff) == 0xff ? 1 : 0;
+            }
+        }
+        assertEquals(3 + 1 + 4 * (1 + 10 + 9 * 2) + ffBytes, bridge.getWrites() - writes);
+    }
+
+    @Test
+    public void reset_detectsEmptyBus() throws IOException {
+        OneWire oneWire = new OneWire(
+                new Ds2482BusMaster(new SimulatedDs2482(new SimulatedOneWireBus())));
+        mExpectedException.expect(IOException.class);
+        mExpectedException.expectMessage("not found");
+        oneWire.reset();
+    }
+
+    @Test
+    public void touchBit_readsSingleSlots() throws IOException {
+        SimulatedOneWireBus bus = SimulatedOneWireBusTest.newBus(1);
+        Ds2482BusMaster master = new Ds2482BusMaster(new SimulatedDs2482(bus));
+        assertTrue(master.reset());
+        assertTrue(master.touchBit(true));
+        assertFalse(master.touchBit(false));
+    }
+
+    private static Long[] box(long[] values) {
+        Long[] boxed = new Long[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            boxed[i] = values[i];
+        }
+        return boxed;
+    }
+
+    // Mocked bridge that records the commands written and answers reads with the given bytes
+    // in turn, then with an idle status.
+    private static I2cDevice mockBridge(final List<byte[]> commands, final int... reads)
+            throws IOException {
+        I2cDevice i2c = Mockito.mock(I2cDevice.class);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                byte[] buffer = (byte[]) invocation.getArguments()[0];
+                int length = (Integer) invocation.getArguments()[1];
+                commands.add(Arrays.copyOf(buffer, length));
+                return null;
+            }
+        }).when(i2c).write(any(byte[].class), anyInt());
+        final int[] next = new int[1];
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                byte[] buffer = (byte[]) invocation.getArguments()[0];
+                int length = (Integer) invocation.getArguments()[1];
+                for (int i = 0; i < length; ++i) {
+                    buffer[i] = next[0] < reads.length ? (byte) reads[next[0]++] : 0;
+                }
+                return null;
+            }
+        }).when(i2c).read(any(byte[].class), anyInt());
+        return i2c;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import com.google.android.things.pio.UartDevice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OneWireBusExecutorTest {
+
+    @Mock
+    private UartDevice mUart;
+
+    @Rule
+    public MockitoRule mMockitoRule = MockitoJUnit.rule();
+
+    private OneWire mOneWire;
+    private OneWireBusExecutor mExecutor;
+
+    @Before
+    public void setUp() throws IOException {
+        mOneWire = new OneWire(mUart);
+        mExecutor = new OneWireBusExecutor(mOneWire);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.close();
+    }
+
+    @Test
+    public void submit_runsOnWorkerThread() throws Exception {
+        Future<Boolean> result = mExecutor.submit(new OneWireBusExecutor.Transaction<Boolean>() {
+            @Override
+            public Boolean run(OneWire oneWire) {
+                assertSame(mOneWire, oneWire);
+                return mExecutor.isWorkerThread();
+            }
+        });
+        assertTrue(result.get(1, TimeUnit.SECONDS));
+        assertFalse(mExecutor.isWorkerThread());
+    }
+
+    @Test
+    public void submit_serializesTransactions() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        OneWireBusExecutor.Transaction<Void> transaction =
+                new OneWireBusExecutor.Transaction<Void>() {
+                    @Override
+                    public Void run(OneWire oneWire) throws IOException {
+                        if (running.incrementAndGet() > 1) {
+                            overlaps.incrementAndGet();
+                        }
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        running.decrementAndGet();
+                        return null;
+                    }
+                };
+        final List<Future<Void>> results = new ArrayList<>();
+        Thread[] callers = new Thread[4];
+        for (int i = 0; i < callers.length; ++i) {
+            final OneWireBusExecutor.Transaction<Void> t = transaction;
+            callers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10; ++j) {
+                        Future<Void> result = mExecutor.submit(t);
+                        synchronized (results) {
+                            results.add(result);
+                        }
+                    }
+                }
+            });
+            callers[i].start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        for (Future<Void> result : results) {
+            result.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(40, results.size());
+        assertEquals(0, overlaps.get());
+    }
+
+    @Test
+    public void submit_runsOtherTransactionsDuringDelay() throws Exception {
+        final List<String> order = new ArrayList<>();
+        Future<String> chained = mExecutor.submit(new OneWireBusExecutor.Transaction<Void>() {
+            @Override
+            public Void run(OneWire oneWire) {
+                order.add("convert");
+                return null;
+            }
+        }, 100, new OneWireBusExecutor.Transaction<String>() {
+            @Override
+            public String run(OneWire oneWire) {
+                order.add("read");
+                return "done";
+            }
+        });
+        Future<Void> other = mExecutor.submit(new OneWireBusExecutor.Transaction<Void>() {
+            @Override
+            public Void run(OneWire oneWire) {
+                order.add("other");
+                return null;
+            }
+        });
+        other.get(1, TimeUnit.SECONDS);
+        assertFalse(chained.isDone());
+        assertEquals("done", chained.get(1, TimeUnit.SECONDS));
+        assertEquals("[convert, other, read]", order.toString());
+    }
+
+    @Test
+    public void submit_deliversFailureToCallback() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final IOException error = new IOException("OneWire devices not found");
+        mExecutor.submit(new OneWireBusExecutor.Transaction<Void>() {
+            @Override
+            public Void run(OneWire oneWire) throws IOException {
+                throw error;
+            }
+        }, new OneWireBusExecutor.Callback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                failure.set(e);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertSame(error, failure.get());
+    }
+
+    @Test
+    public void close_failsPendingTransactions() throws Exception {
+        Future<Void> pending = mExecutor.schedule(new OneWireBusExecutor.Transaction<Void>() {
+            @Override
+            public Void run(OneWire oneWire) {
+                return null;
+            }
+        }, 60 * 1000);
+        mExecutor.close();
+        try {
+            pending.get(1, TimeUnit.SECONDS);
+            fail("Pending transaction completed after close");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void readTemperature_rejectsExecutorOfOtherBus() throws IOException {
+        Ds18b20 ds18b20 = new Ds18b20(mUart, 0x28ffd7468114020cL);
+        ds18b20.readTemperature(mExecutor);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import com.google.android.things.pio.UartDevice;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OneWireRegistryTest {
+
+    @Mock
+    private UartDevice mUart;
+
+    @Rule
+    public MockitoRule mMockitoRule = MockitoJUnit.rule();
+
+    private int mOpened;
+
+    private final VirtualClock mClock = new VirtualClock();
+
+    private OneWireRegistry createRegistry(long idleCloseMillis) {
+        return new OneWireRegistry(new OneWireRegistry.Opener() {
+            @Override
+            public OneWire open(String uart) throws IOException {
+                mOpened++;
+                return new OneWire(mUart);
+            }
+        }, idleCloseMillis, mClock);
+    }
+
+    @Test
+    public void acquire_sharesBus() throws IOException {
+        OneWireRegistry registry = createRegistry(0);
+        OneWire first = registry.acquire("UART0");
+        OneWire second = registry.acquire("UART0");
+        assertSame(first, second);
+        assertEquals(1, mOpened);
+    }
+
+    @Test
+    public void release_closesWhenLastUserLeaves() throws IOException {
+        OneWireRegistry registry = createRegistry(0);
+        OneWire first = registry.acquire("UART0");
+        OneWire second = registry.acquire("UART0");
+        registry.release(first);
+        assertTrue(registry.isOpen("UART0"));
+        Mockito.verify(mUart, Mockito.never()).close();
+        registry.release(second);
+        assertFalse(registry.isOpen("UART0"));
+        Mockito.verify(mUart).close();
+    }
+
+    @Test
+    public void release_keepsBusOpenWhileIdle() throws IOException {
+        OneWireRegistry registry = createRegistry(60 * 1000);
+        OneWire first = registry.acquire("UART0");
+        registry.release(first);
+        assertTrue(registry.isOpen("UART0"));
+        assertSame(first, registry.acquire("UART0"));
+        assertEquals(1, mOpened);
+        Mockito.verify(mUart, Mockito.never()).close();
+    }
+
+    @Test
+    public void release_closesAfterIdleTimeout() throws Exception {
+        OneWireRegistry registry = createRegistry(60 * 1000);
+        OneWire first = registry.acquire("UART0");
+        registry.release(first);
+        mClock.advance(60 * 1000 - 1);
+        registry.closeIdleBuses();
+        assertTrue(registry.isOpen("UART0"));
+        Mockito.verify(mUart, Mockito.never()).close();
+
+        mClock.advance(1);
+        registry.closeIdleBuses();
+        assertFalse(registry.isOpen("UART0"));
+        Mockito.verify(mUart).close();
+        assertNotSame(first, registry.acquire("UART0"));
+        assertEquals(2, mOpened);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void release_rejectsUnknownBus() throws IOException {
+        OneWireRegistry registry = createRegistry(0);
+        registry.release(new OneWire(mUart));
+    }
+}
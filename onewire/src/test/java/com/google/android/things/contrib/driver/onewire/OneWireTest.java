@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import com.google.android.things.pio.UartDevice;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+
+public class OneWireTest {
+
+    private static final long[] ROMS = {
+            0x28ffd7468114020cL,
+            0x28ff22da801603efL,
+            0x10000802c3a1b2d1L,
+            0x28ff64d2b01604dbL,
+    };
+
+    @Test
+    public void searchRoms_findsAllDevices() throws IOException {
+        OneWire oneWire = new OneWire(searchBus(ROMS));
+        long[] found = oneWire.searchRoms();
+        assertEquals(ROMS.length, found.length);
+        assertArrayEquals(sorted(ROMS), sorted(found));
+    }
+
+    @Test
+    public void searchRoms_restrictedToFamily() throws IOException {
+        OneWire oneWire = new OneWire(searchBus(ROMS));
+        long[] found = oneWire.searchRoms(0x28);
+        assertArrayEquals(sorted(new long[]{ROMS[0], ROMS[1], ROMS[3]}), sorted(found));
+        assertArrayEquals(new long[]{ROMS[2]}, oneWire.searchRoms(0x10));
+        assertEquals(0, oneWire.searchRoms(0x22).length);
+    }
+
+    @Test
+    public void searchNext_resumes() throws IOException {
+        OneWire oneWire = new OneWire(searchBus(ROMS));
+        long[] all = oneWire.searchRoms();
+        RomSearch search = new RomSearch();
+        assertEquals(all[0], oneWire.searchNext(search));
+        long[] rest = oneWire.searchRoms(search);
+        assertArrayEquals(Arrays.copyOfRange(all, 1, all.length), rest);
+        assertTrue(search.isDone());
+        assertEquals(0, oneWire.searchNext(search));
+    }
+
+    @Test
+    public void searchAlarms_findsAlarmingDevicesOnly() throws IOException {
+        OneWire oneWire = new OneWire(searchBus(ROMS, ROMS[1], ROMS[2]));
+        assertArrayEquals(new long[]{ROMS[1]}, oneWire.searchAlarms(0x28));
+        assertArrayEquals(sorted(new long[]{ROMS[1], ROMS[2]}),
+                sorted(oneWire.searchAlarms(RomSearch.ANY_FAMILY)));
+        assertEquals(ROMS.length, oneWire.searchRoms().length);
+    }
+
+    @Test
+    public void searchAlarms_noneAlarming() throws IOException {
+        OneWire oneWire = new OneWire(searchBus(ROMS));
+        assertEquals(0, oneWire.searchAlarms(RomSearch.ANY_FAMILY).length);
+    }
+
+    private static long[] sorted(long[] ids) {
+        long[] copy = ids.clone();
+        Arrays.sort(copy);
+        return copy;
+    }
+
+    // Mocked UART that only answers resets and the ROM and alarm searches, as a wired-AND of the
+    // devices.
+    private static UartDevice searchBus(final long[] roms, long... alarming) throws IOException {
+        UartDevice uart = Mockito.mock(UartDevice.class);
+        final ArrayDeque<Byte> echo = new ArrayDeque<>();
+        final int[] slot = new int[1];
+        final int[] command = new int[1];
+        final boolean[] active = new boolean[roms.length];
+        final boolean[] alarm = new boolean[roms.length];
+        for (int d = 0; d < roms.length; ++d) {
+            for (long id : alarming) {
+                alarm[d] |= roms[d] == id;
+            }
+        }
+        Mockito.when(uart.write(any(byte[].class), anyInt())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                byte[] buffer = (byte[]) invocation.getArguments()[0];
+                int length = (Integer) invocation.getArguments()[1];
+                for (int i = 0; i < length; ++i) {
+                    if (length == 1 && buffer[i] == (byte) 0xf0) {
+                        // Reset: everyone joins the next search.
+                        Arrays.fill(active, true);
+                        slot[0] = -8;
+                        command[0] = 0;
+                        echo.add((byte) 0xe0);
+                        continue;
+                    }
+                    int s = slot[0]++;
+                    boolean bus = buffer[i] == (byte) 0xff;
+                    if (s < 0) {
+                        command[0] |= (bus ? 1 : 0) << (s + 8);
+                        if (s == -1 && command[0] == (OneWire.OW_ALARM_SEARCH & 0xff)) {
+                            // Only devices in an alarm condition answer the alarm search.
+                            for (int d = 0; d < roms.length; ++d) {
+                                active[d] = alarm[d];
+                            }
+                        }
+                    } else {
+                        // Slots after the command byte: bit, complement, direction.
+                        int bitNumber = s / 3;
+                        for (int d = 0; d < roms.length; ++d) {
+                            boolean bit = romBit(roms[d], bitNumber);
+                            if (!active[d]) {
+                                continue;
+                            }
+                            if (s % 3 == 0 && !bit || s % 3 == 1 && bit) {
+                                bus = false;
+                            } else if (s % 3 == 2 && bit != bus) {
+                                active[d] = false;
+                            }
+                        }
+                    }
+                    echo.add(bus ? (byte) 0xff : (byte) 0xfe);
+                }
+                return length;
+            }
+        });
+        Mockito.when(uart.read(any(byte[].class), anyInt())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                byte[] buffer = (byte[]) invocation.getArguments()[0];
+                int length = (Integer) invocation.getArguments()[1];
+                int count = 0;
+                while (count < length && !echo.isEmpty()) {
+                    buffer[count++] = echo.poll();
+                }
+                return count;
+            }
+        });
+        return uart;
+    }
+
+    // ROM bits are sent LSB first, starting with the family code in the top byte of the ID.
+    private static boolean romBit(long rom, int bitNumber) {
+        int shift = 56 - (bitNumber & ~7) + (bitNumber & 7);
+        return ((rom >>> shift) & 1) != 0;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OneWireTraceTest {
+
+    private static final byte[] SCRATCHPAD =
+            {0x3e, 0x01, 0x4b, 0x46, 0x7f, (byte) 0xff, 0x0c, 0x10, (byte) 0xb0};
+
+    @Test
+    public void record_keepsMostRecent() {
+        OneWireTrace trace = new OneWireTrace(3);
+        for (int i = 0; i < 5; ++i) {
+            trace.record(i, OneWireTrace.OP_BIT, i, 0xff - i, 115200);
+        }
+        assertEquals(3, trace.size());
+        assertEquals(5, trace.getTotalCount());
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(i + 2, trace.getTimestampNanos(i));
+            assertEquals(OneWireTrace.OP_BIT, trace.getOp(i));
+            assertEquals(i + 2, trace.getWritten(i));
+            assertEquals(0xff - i - 2, trace.getEchoed(i));
+            assertEquals(115200, trace.getBaud(i));
+        }
+        trace.clear();
+        assertEquals(0, trace.size());
+    }
+
+    @Test
+    public void oneWire_recordsResetAndSlots() throws IOException {
+        OneWire oneWire = new OneWire(new ScratchpadUartDevice(SCRATCHPAD));
+        OneWireTrace trace = new OneWireTrace(1024);
+        oneWire.setTrace(trace);
+        oneWire.oneWireCommand(Ds18b20.DS18X20_CONVERT_T, 0);
+
+        // Reset, then SKIP_ROM and CONVERT_T as one burst.
+        assertEquals(1 + 16, trace.size());
+        assertEquals(OneWireTrace.OP_RESET, trace.getOp(0));
+        assertEquals(0xf0, trace.getWritten(0));
+        assertEquals(0xe0, trace.getEchoed(0));
+        assertEquals(9600, trace.getBaud(0));
+        for (int i = 1; i < trace.size(); ++i) {
+            assertEquals(OneWireTrace.OP_BURST_SLOT, trace.getOp(i));
+            assertEquals(115200, trace.getBaud(i));
+        }
+        // SKIP_ROM is 0xcc, sent LSB first.
+        assertEquals(0x00, trace.getWritten(1));
+        assertEquals(0x00, trace.getWritten(2));
+        assertEquals(0xff, trace.getWritten(3));
+
+        oneWire.setTrace(null);
+        oneWire.oneWireCommand(Ds18b20.DS18X20_CONVERT_T, 0);
+        assertEquals(17, trace.size());
+    }
+
+    @Test
+    public void dump_writesRecordsOldestFirst() throws IOException {
+        OneWireTrace trace = new OneWireTrace(2);
+        trace.record(10, OneWireTrace.OP_RESET, 0xf0, 0xe0, 9600);
+        trace.record(20, OneWireTrace.OP_BIT, 0xff, 0xfe, 115200);
+        trace.record(30, OneWireTrace.OP_TIMEOUT, 0, 0, 115200);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.dump(out);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(OneWireTrace.DUMP_MAGIC, in.readInt());
+        assertEquals(OneWireTrace.DUMP_VERSION, in.readInt());
+        assertEquals(2, in.readInt());
+        assertEquals(20, in.readLong());
+        assertEquals(OneWireTrace.OP_BIT, in.readUnsignedByte());
+        assertEquals(0xff, in.readUnsignedByte());
+        assertEquals(0xfe, in.readUnsignedByte());
+        assertEquals(115200, in.readInt());
+        assertEquals(30, in.readLong());
+        assertEquals(OneWireTrace.OP_TIMEOUT, in.readUnsignedByte());
+        in.skipBytes(2 + 4);
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void record_doesNotAllocate() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+
+        Ds18b20 ds18b20 = new Ds18b20(new ScratchpadUartDevice(SCRATCHPAD));
+        OneWireTrace trace = new OneWireTrace(4096);
+        ds18b20.mOneWire.setTrace(trace);
+        float sum = 0;
+        for (int i = 0; i < 100; ++i) {
+            sum += ds18b20.readTemperature();
+        }
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; ++i) {
+            sum += ds18b20.readTemperature();
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertEquals(19.875f * 1100, sum, 0);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1000);
+        assertEquals(4096, trace.size());
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RomIdCacheTest {
+
+    private static final long[] IDS = {0x28ffd7468114020cL, 0x28ff22da801603efL};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void load_returnsStoredIds() throws IOException {
+        RomIdCache cache = new RomIdCache(mFolder.getRoot());
+        cache.store("UART0", IDS);
+        assertArrayEquals(IDS, cache.load("UART0"));
+        assertEquals(0, cache.load("UART1").length);
+        assertFalse(new File(cache.getFile("UART0").getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void store_replacesIds() throws IOException {
+        RomIdCache cache = new RomIdCache(mFolder.getRoot());
+        cache.store("UART0", IDS);
+        cache.store("UART0", new long[]{IDS[1]});
+        assertArrayEquals(new long[]{IDS[1]}, cache.load("UART0"));
+    }
+
+    @Test
+    public void load_rejectsCorruptedFile() throws IOException {
+        RomIdCache cache = new RomIdCache(mFolder.getRoot());
+        cache.store("UART0", IDS);
+        try (RandomAccessFile file = new RandomAccessFile(cache.getFile("UART0"), "rw")) {
+            file.seek(20);
+            file.write(0x55);
+        }
+        assertEquals(0, cache.load("UART0").length);
+    }
+
+    @Test
+    public void load_rejectsTruncatedFile() throws IOException {
+        RomIdCache cache = new RomIdCache(mFolder.getRoot());
+        byte[] bytes = RomIdCache.encode(IDS);
+        try (FileOutputStream out = new FileOutputStream(cache.getFile("UART0"))) {
+            out.write(bytes, 0, bytes.length - 8);
+        }
+        assertEquals(0, cache.load("UART0").length);
+    }
+
+    @Test
+    public void clear_forgetsIds() throws IOException {
+        RomIdCache cache = new RomIdCache(mFolder.getRoot());
+        cache.store("UART0", IDS);
+        cache.clear("UART0");
+        assertFalse(cache.getFile("UART0").exists());
+        assertEquals(0, cache.load("UART0").length);
+    }
+
+    @Test
+    public void getFile_isInDirectory() {
+        RomIdCache cache = new RomIdCache(mFolder.getRoot());
+        File file = cache.getFile("/dev/ttyS0");
+        assertEquals(mFolder.getRoot(), file.getParentFile());
+        assertTrue(file.getName().startsWith("onewire-"));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import android.os.Handler;
+
+import com.google.android.things.pio.UartDevice;
+import com.google.android.things.pio.UartDeviceCallback;
+
+/**
+ * Allocation-free UART fake with a DS18B20 that answers to SKIP_ROM and to any MATCH_ROM ID.
+ * Every conversion completes immediately and READ returns a fixed scratchpad.
+ */
+class ScratchpadUartDevice implements UartDevice {
+    private final byte[] mScratchpad;
+    private final byte[] mEcho = new byte[1024];
+    private int mHead;
+    private int mTail;
+    private int mBaudrate;
+    // Bit slots since the last reset and the ROM and function command bits collected so far.
+    private int mSlot;
+    private int mCommand;
+    private int mConversions;
+    private int mReads;
+    private int mCorruptReads;
+
+    ScratchpadUartDevice(byte[] scratchpad) {
+        mScratchpad = scratchpad;
+    }
+
+    @Override
+    public int write(byte[] buffer, int length) {
+        for (int i = 0; i < length; ++i) {
+            mEcho[mTail++ & (mEcho.length - 1)] = slot(buffer[i]);
+        }
+        return length;
+    }
+
+    @Override
+    public int read(byte[] buffer, int length) {
+        int count = 0;
+        while (count < length && mHead != mTail) {
+            buffer[count++] = mEcho[mHead++ & (mEcho.length - 1)];
+        }
+        return count;
+    }
+
+    private byte slot(byte b) {
+        if (mBaudrate == 9600) {
+            mSlot = 0;
+            mCommand = 0;
+            return (byte) 0xe0;
+        }
+        int slot = mSlot++;
+        // The function command follows SKIP_ROM, or MATCH_ROM and any 64-bit ID.
+        int commandEnd = (mCommand & 0xff) == OneWire.OW_MATCH_ROM ? 80 : 16;
+        if (slot < commandEnd) {
+            if (slot < 8 || slot >= commandEnd - 8) {
+                mCommand |= ((b & 1) << (slot < 8 ? slot : slot - commandEnd + 16));
+            }
+            if (slot == commandEnd - 1 && (mCommand >> 8) == Ds18b20.DS18X20_CONVERT_T) {
+                mConversions++;
+            }
+            return b;
+        }
+        int bit = slot - commandEnd;
+        if ((mCommand >> 8) != Ds18b20.DS18X20_READ || bit >= mScratchpad.length * 8) {
+            return b;
+        }
+        boolean one = ((mScratchpad[bit >> 3] >> (bit & 7)) & 1) != 0;
+        if (bit == 0 && mReads++ < mCorruptReads) {
+            // Flip the first bit of the response.
+            one = !one;
+        }
+        return one ? b : (byte) 0xfe;
+    }
+
+    int getConversions() {
+        return mConversions;
+    }
+
+    // Corrupt the first count scratchpad reads.
+    void corruptReads(int count) {
+        mCorruptReads = mReads + count;
+    }
+
+    int getReads() {
+        return mReads;
+    }
+
+    @Override
+    public void setBaudrate(int rate) {
+        mBaudrate = rate;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getName() {
+        return "UART0";
+    }
+
+    @Override
+    public void setParity(int mode) {
+    }
+
+    @Override
+    public void setDataSize(int size) {
+    }
+
+    @Override
+    public void setStopBits(int bits) {
+    }
+
+    @Override
+    public void setHardwareFlowControl(int mode) {
+    }
+
+    @Override
+    public void setModemControl(int lines) {
+    }
+
+    @Override
+    public void clearModemControl(int lines) {
+    }
+
+    public int getModemControl() {
+        return 0;
+    }
+
+    @Override
+    public void sendBreak(int duration) {
+    }
+
+    @Override
+    public void flush(int direction) {
+        mHead = mTail;
+    }
+
+    @Override
+    public void registerUartDeviceCallback(UartDeviceCallback callback) {
+    }
+
+    @Override
+    public void registerUartDeviceCallback(Handler handler, UartDeviceCallback callback) {
+    }
+
+    @Override
+    public void unregisterUartDeviceCallback(UartDeviceCallback callback) {
+    }
+}
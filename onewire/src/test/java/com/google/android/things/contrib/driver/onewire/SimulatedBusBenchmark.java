@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the host-side cost of enumerating and sampling a bus of DS18B20s on
+ * {@link SimulatedOneWireBus}, with conversions that complete immediately. The time the same
+ * operations take on the wire is {@link SimulatedOneWireBus#getBusTimeNanos()}. Run with
+ * {@link #main(String[])} from the unit test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimulatedBusBenchmark {
+
+    @Param({"1", "16", "64"})
+    public int sensors;
+
+    private OneWire mOneWire;
+    private Ds18b20Bus mSampler;
+    private int[] mRaws;
+
+    @Setup
+    public void setUp() throws IOException {
+        mOneWire = new OneWire(SimulatedOneWireBusTest.newBus(sensors));
+        SimulatedOneWireBus bus = SimulatedOneWireBusTest.newBus(sensors);
+        mSampler = new Ds18b20Bus(bus, new OneWire(bus).searchRoms(Ds18b20.FAMILY_CODE));
+        mRaws = new int[sensors];
+    }
+
+    @Benchmark
+    public long[] searchRoms() throws IOException {
+        return mOneWire.searchRoms(Ds18b20.FAMILY_CODE);
+    }
+
+    @Benchmark
+    public int readRawTemperatures() throws IOException {
+        return mSampler.readRawTemperatures(mRaws);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SimulatedBusBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import com.google.android.things.pio.I2cDevice;
+
+/**
+ * DS2482-100 I2C bridge in front of a {@link SimulatedOneWireBus}. Every 1-Wire command runs
+ * its resets and slots on the simulated bus, and the status register reports the bridge busy
+ * for a configurable number of reads after each command.
+ */
+class SimulatedDs2482 implements I2cDevice {
+    private final SimulatedOneWireBus mBus;
+    private final byte[] mSlot = new byte[1];
+    private int mReadPointer = Ds2482BusMaster.REG_STATUS;
+    private int mStatus = Ds2482BusMaster.STATUS_RST;
+    private int mConfig;
+    private int mData;
+    private int mBusyReads = 1;
+    private int mBusyLeft;
+    private boolean mShorted;
+
+    private int mWrites;
+    private int mReads;
+
+    SimulatedDs2482(SimulatedOneWireBus bus) {
+        mBus = bus;
+    }
+
+    /**
+     * Set how many status reads after a 1-Wire command still report it busy.
+     */
+    void setBusyReads(int reads) {
+        mBusyReads = reads;
+    }
+
+    void setShorted(boolean shorted) {
+        mShorted = shorted;
+    }
+
+    /**
+     * Returns the number of I2C write transactions.
+     */
+    int getWrites() {
+        return mWrites;
+    }
+
+    /**
+     * Returns the number of I2C read transactions.
+     */
+    int getReads() {
+        return mReads;
+    }
+
+    @Override
+    public void write(byte[] buffer, int length) {
+        mWrites++;
+        int command = buffer[0] & 0xff;
+        int parameter = length > 1 ? buffer[1] & 0xff : 0;
+        switch (command) {
+            case Ds2482BusMaster.CMD_DEVICE_RESET:
+                mStatus = Ds2482BusMaster.STATUS_RST;
+                mConfig = 0;
+                mReadPointer = Ds2482BusMaster.REG_STATUS;
+                break;
+            case Ds2482BusMaster.CMD_SET_READ_POINTER:
+                mReadPointer = parameter;
+                break;
+            case Ds2482BusMaster.CMD_WRITE_CONFIG:
+                mConfig = parameter & 0x0f;
+                mStatus &= ~Ds2482BusMaster.STATUS_RST;
+                mReadPointer = Ds2482BusMaster.REG_CONFIG;
+                break;
+            case Ds2482BusMaster.CMD_1WIRE_RESET:
+                mStatus = 0;
+                if (mShorted) {
+                    mStatus |= Ds2482BusMaster.STATUS_SD;
+                } else {
+                    mBus.setBaudrate(9600);
+                    if (touch(0xf0) != 0xf0) {
+                        mStatus |= Ds2482BusMaster.STATUS_PPD;
+                    }
+                    mBus.setBaudrate(115200);
+                }
+                startCommand();
+                break;
+            case Ds2482BusMaster.CMD_1WIRE_SINGLE_BIT:
+                mStatus = touchBit((parameter & 0x80) != 0) ? Ds2482BusMaster.STATUS_SBR : 0;
+                startCommand();
+                break;
+            case Ds2482BusMaster.CMD_1WIRE_WRITE_BYTE:
+                mStatus = 0;
+                for (int i = 0; i < 8; ++i) {
+                    touchBit(((parameter >> i) & 1) != 0);
+                }
+                startCommand();
+                break;
+            case Ds2482BusMaster.CMD_1WIRE_READ_BYTE:
+                mStatus = 0;
+                mData = 0;
+                for (int i = 0; i < 8; ++i) {
+                    if (touchBit(true)) {
+                        mData |= 1 << i;
+                    }
+                }
+                startCommand();
+                break;
+            case Ds2482BusMaster.CMD_1WIRE_TRIPLET:
+                boolean bit = touchBit(true);
+                boolean complement = touchBit(true);
+                boolean direction = bit != complement ? bit : bit || (parameter & 0x80) != 0;
+                touchBit(direction);
+                mStatus = (bit ? Ds2482BusMaster.STATUS_SBR : 0)
+                        | (complement ? Ds2482BusMaster.STATUS_TSB : 0)
+                        | (direction ? Ds2482BusMaster.STATUS_DIR : 0);
+                startCommand();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command " + command);
+        }
+    }
+
+    private void startCommand() {
+        mBusyLeft = mBusyReads;
+        mReadPointer = Ds2482BusMaster.REG_STATUS;
+    }
+
+    private boolean touchBit(boolean bit) {
+        return touch(bit ? 0xff : 0x00) == 0xff;
+    }
+
+    private int touch(int b) {
+        mSlot[0] = (byte) b;
+        mBus.write(mSlot, 1);
+        mBus.read(mSlot, 1);
+        return mSlot[0] & 0xff;
+    }
+
+    @Override
+    public void read(byte[] buffer, int length) {
+        mReads++;
+        for (int i = 0; i < length; ++i) {
+            switch (mReadPointer) {
+                case Ds2482BusMaster.REG_STATUS:
+                    if (mBusyLeft > 0) {
+                        mBusyLeft--;
+                        buffer[i] = (byte) (mStatus | Ds2482BusMaster.STATUS_1WB);
+                    } else {
+                        buffer[i] = (byte) mStatus;
+                    }
+                    break;
+                case Ds2482BusMaster.REG_DATA:
+                    buffer[i] = (byte) mData;
+                    break;
+                case Ds2482BusMaster.REG_CONFIG:
+                    buffer[i] = (byte) mConfig;
+                    break;
+                default:
+                    buffer[i] = (byte) 0xff;
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getName() {
+        return "I2C1";
+    }
+
+    @Override
+    public byte readRegByte(int reg) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void writeRegByte(int reg, byte data) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short readRegWord(int reg) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void writeRegWord(int reg, short data) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void readRegBuffer(int reg, byte[] buffer, int length) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void writeRegBuffer(int reg, byte[] buffer, int length) {
+        throw new UnsupportedOperationException();
+    }
+}
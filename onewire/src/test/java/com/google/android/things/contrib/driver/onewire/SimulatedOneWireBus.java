@@ -0,0 +1,534 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import android.os.Handler;
+
+import com.dalsemi.onewire.utils.CRC8;
+import com.google.android.things.pio.UartDevice;
+import com.google.android.things.pio.UartDeviceCallback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * In-process 1-Wire bus behind a UART, as {@link OneWire} drives it: a byte written at 9600
+ * baud is a reset answered by the presence pulse, and every byte written at 115200 baud is a
+ * bit slot echoed as the wired-AND of the master and all the devices.
+ * <p>
+ * The devices are virtual DS18B20s that take part in ROM and alarm searches, MATCH_ROM,
+ * SKIP_ROM and READ_ROM, convert for a configurable time and hold read slots low meanwhile,
+ * and keep a scratchpad and EEPROM. Read slots can be disturbed by seeded random noise and
+ * scratchpad reads corrupted on demand, so runs are reproducible. Slot exchanges do not
+ * allocate.
+ */
+class SimulatedOneWireBus implements UartDevice {
+
+    // Wire time of one UART character, start and stop bits included.
+    static final long RESET_NANOS = 10 * 1000000000L / 9600;
+    static final long SLOT_NANOS = 10 * 1000000000L / 115200;
+
+    private static final int RING_SIZE = 4096;
+
+    // ROM commands.
+    private static final int READ_ROM = 0x33;
+
+    // Device states between resets.
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_ROM_COMMAND = 1;
+    private static final int STATE_MATCH_ROM = 2;
+    private static final int STATE_SEARCH = 3;
+    private static final int STATE_READ_ROM = 4;
+    private static final int STATE_FUNCTION = 5;
+    private static final int STATE_CONVERTING = 6;
+    private static final int STATE_READ_SCRATCHPAD = 7;
+    private static final int STATE_WRITE_SCRATCHPAD = 8;
+
+    /**
+     * Virtual DS18B20.
+     */
+    static class Device {
+        // Power-on scratchpad: 85 degrees, TH 75, TL 70, 12-bit resolution.
+        private final byte[] mScratchpad =
+                {0x50, 0x05, 0x4b, 0x46, 0x7f, (byte) 0xff, 0x0c, 0x10, 0};
+        private final byte[] mEeprom = {0x4b, 0x46, 0x7f};
+        private final long mId;
+        private int mTemperature;
+        // Raw temperature latched by the running conversion and when it completes.
+        private boolean mConverting;
+        private int mConvertedTemperature;
+        private long mConversionDoneNanos;
+        private int mConversions;
+        private int mReads;
+        private int mCorruptReads;
+        private boolean mCopyFails;
+
+        // Transaction state since the last reset.
+        private int mState;
+        private int mBit;
+        private int mByte;
+
+        /**
+         * Create a device with the given family code and serial number. The CRC8 byte of the
+         * ID is computed.
+         *
+         * @param id OneWire ID of the device. Its lowest byte is replaced with the CRC8.
+         */
+        Device(long id) {
+            byte[] rom = new byte[OneWire.OW_ID_SIZE];
+            for (int i = 0; i < rom.length - 1; ++i) {
+                rom[i] = (byte) (id >>> (56 - i * 8));
+            }
+            mId = (id & ~0xffL) | CRC8.compute(rom, 0, rom.length - 1);
+            updateCrc();
+        }
+
+        long getId() {
+            return mId;
+        }
+
+        /**
+         * Set the temperature the next conversions measure.
+         */
+        void setTemperature(float celsius) {
+            mTemperature = Math.round(celsius * 16);
+        }
+
+        /**
+         * Returns the number of conversions started.
+         */
+        int getConversions() {
+            return mConversions;
+        }
+
+        /**
+         * Returns the number of scratchpad reads.
+         */
+        int getReads() {
+            return mReads;
+        }
+
+        /**
+         * Flip the first bit of the next count scratchpad reads, so that they fail the CRC8.
+         */
+        void corruptReads(int count) {
+            mCorruptReads = mReads + count;
+        }
+
+        /**
+         * Make COPY SCRATCHPAD leave the EEPROM as it is, like a worn out EEPROM.
+         */
+        void setCopyFails(boolean fails) {
+            mCopyFails = fails;
+        }
+
+        int getResolution() {
+            return Ds18b20.resolutionOf(mScratchpad);
+        }
+
+        // Alarm condition of the last conversion, compared in whole degrees.
+        boolean isAlarming() {
+            int celsius = (short) ((mScratchpad[1] << 8) | (mScratchpad[0] & 0xff)) >> 4;
+            return celsius >= mScratchpad[Ds18b20.SCRATCHPAD_TH]
+                    || celsius <= mScratchpad[Ds18b20.SCRATCHPAD_TL];
+        }
+
+        private boolean romBit(int bit) {
+            return ((mId >>> (56 - (bit & ~7) + (bit & 7))) & 1) != 0;
+        }
+
+        private void updateCrc() {
+            mScratchpad[8] = (byte) CRC8.compute(mScratchpad, 0, 8);
+        }
+
+        // Latch the result of a completed conversion into the scratchpad.
+        private void update(long now) {
+            if (mConverting && now - mConversionDoneNanos >= 0) {
+                mConverting = false;
+                mScratchpad[0] = (byte) mConvertedTemperature;
+                mScratchpad[1] = (byte) (mConvertedTemperature >> 8);
+                updateCrc();
+            }
+        }
+    }
+
+    private final List<Device> mDevices = new ArrayList<>();
+    private final byte[] mEcho = new byte[RING_SIZE];
+    private int mHead;
+    private int mTail;
+    private int mBaudrate;
+    private long mConversionNanos;
+    private OneWireClock mClock = OneWireClock.SYSTEM;
+    private Random mNoise;
+    private double mNoiseRate;
+    private UartDeviceCallback mCallback;
+
+    private long mResets;
+    private long mSlots;
+    private long mFlippedSlots;
+    private long mWrites;
+
+    /**
+     * Add a device to the bus.
+     */
+    synchronized Device addDevice(long id) {
+        Device device = new Device(id);
+        mDevices.add(device);
+        return device;
+    }
+
+    /**
+     * Remove a device from the bus.
+     */
+    synchronized void removeDevice(Device device) {
+        mDevices.remove(device);
+    }
+
+    synchronized List<Device> getDevices() {
+        return new ArrayList<>(mDevices);
+    }
+
+    /**
+     * Set how long a 12-bit conversion takes. Lower resolutions take proportionally less.
+     * Conversions complete immediately by default.
+     */
+    synchronized void setConversionTimeMillis(long millis) {
+        mConversionNanos = millis * 1000000L;
+    }
+
+    /**
+     * Set the clock conversions are timed with, normally the one of the bus master.
+     */
+    synchronized void setClock(OneWireClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Flip the bits read by the master at random.
+     *
+     * @param rate probability that a read slot is flipped.
+     * @param seed seed of the random sequence.
+     */
+    synchronized void setNoise(double rate, long seed) {
+        mNoiseRate = rate;
+        mNoise = rate > 0 ? new Random(seed) : null;
+    }
+
+    synchronized long getResets() {
+        return mResets;
+    }
+
+    synchronized long getSlots() {
+        return mSlots;
+    }
+
+    synchronized long getFlippedSlots() {
+        return mFlippedSlots;
+    }
+
+    /**
+     * Returns the number of {@link #write(byte[], int)} calls.
+     */
+    synchronized long getWrites() {
+        return mWrites;
+    }
+
+    /**
+     * Returns the time the resets and bit slots exchanged so far would take on the wire.
+     */
+    synchronized long getBusTimeNanos() {
+        return mResets * RESET_NANOS + mSlots * SLOT_NANOS;
+    }
+
+    @Override
+    public int write(byte[] buffer, int length) {
+        UartDeviceCallback callback;
+        synchronized (this) {
+            mWrites++;
+            long now = mClock.nanoTime();
+            for (int i = 0; i < length; ++i) {
+                mEcho[mTail++ & (RING_SIZE - 1)] =
+                        mBaudrate == 9600 ? reset(buffer[i], now) : slot(buffer[i], now);
+            }
+            callback = mCallback;
+        }
+        if (callback != null) {
+            callback.onUartDeviceDataAvailable(this);
+        }
+        return length;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int length) {
+        int count = 0;
+        while (count < length && mHead != mTail) {
+            buffer[count++] = mEcho[mHead++ & (RING_SIZE - 1)];
+        }
+        return count;
+    }
+
+    private byte reset(byte b, long now) {
+        mResets++;
+        if (b != (byte) 0xf0) {
+            return b;
+        }
+        for (int i = 0; i < mDevices.size(); ++i) {
+            Device device = mDevices.get(i);
+            device.update(now);
+            device.mState = STATE_ROM_COMMAND;
+            device.mBit = 0;
+            device.mByte = 0;
+        }
+        // Present devices pull the stop bit and the high data bits low.
+        return mDevices.isEmpty() ? b : (byte) 0xe0;
+    }
+
+    private byte slot(byte b, long now) {
+        mSlots++;
+        boolean released = b == (byte) 0xff;
+        boolean bus = released;
+        for (int i = 0; i < mDevices.size(); ++i) {
+            if (!drive(mDevices.get(i), now)) {
+                bus = false;
+            }
+        }
+        for (int i = 0; i < mDevices.size(); ++i) {
+            sample(mDevices.get(i), bus, now);
+        }
+        if (released && mNoise != null && mNoise.nextDouble() < mNoiseRate) {
+            mFlippedSlots++;
+            bus = !bus;
+        }
+        return bus ? b : (byte) 0xfe;
+    }
+
+    // Returns false if the device holds the bus low during the slot.
+    private boolean drive(Device device, long now) {
+        switch (device.mState) {
+            case STATE_SEARCH:
+                // Bit, then complement, then the direction written by the master.
+                int phase = device.mBit % 3;
+                boolean bit = device.romBit(device.mBit / 3);
+                return phase == 2 || (phase == 0 ? bit : !bit);
+            case STATE_READ_ROM:
+                return device.romBit(device.mBit);
+            case STATE_CONVERTING:
+                device.update(now);
+                return !device.mConverting;
+            case STATE_READ_SCRATCHPAD:
+                int index = device.mBit;
+                if (index >= Ds18b20.SCRATCHPAD_SIZE * 8) {
+                    return true;
+                }
+                boolean one = ((device.mScratchpad[index >> 3] >> (index & 7)) & 1) != 0;
+                if (index == 0 && device.mReads <= device.mCorruptReads) {
+                    one = !one;
+                }
+                return one;
+            default:
+                return true;
+        }
+    }
+
+    // Let the device see the level of the bus at the end of the slot.
+    private void sample(Device device, boolean bus, long now) {
+        switch (device.mState) {
+            case STATE_ROM_COMMAND:
+                if (receiveByte(device, bus)) {
+                    romCommand(device, device.mByte);
+                    device.mByte = 0;
+                }
+                break;
+            case STATE_MATCH_ROM:
+                if (device.romBit(device.mBit) != bus) {
+                    device.mState = STATE_IDLE;
+                } else if (++device.mBit == 64) {
+                    device.mState = STATE_FUNCTION;
+                    device.mBit = 0;
+                }
+                break;
+            case STATE_SEARCH:
+                if (device.mBit % 3 == 2 && device.romBit(device.mBit / 3) != bus) {
+                    device.mState = STATE_IDLE;
+                } else if (++device.mBit == 64 * 3) {
+                    device.mState = STATE_IDLE;
+                }
+                break;
+            case STATE_READ_ROM:
+                if (++device.mBit == 64) {
+                    device.mState = STATE_IDLE;
+                }
+                break;
+            case STATE_FUNCTION:
+                if (receiveByte(device, bus)) {
+                    functionCommand(device, device.mByte, now);
+                    device.mByte = 0;
+                }
+                break;
+            case STATE_READ_SCRATCHPAD:
+                device.mBit++;
+                break;
+            case STATE_WRITE_SCRATCHPAD:
+                if (receiveByte(device, bus)) {
+                    int index = Ds18b20.SCRATCHPAD_TH + device.mBit / 8 - 1;
+                    device.mScratchpad[index] = (byte) (index == Ds18b20.SCRATCHPAD_CONFIG
+                            ? (device.mByte & 0x60) | 0x1f : device.mByte);
+                    device.updateCrc();
+                    device.mByte = 0;
+                    if (index == Ds18b20.SCRATCHPAD_CONFIG) {
+                        device.mState = STATE_IDLE;
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Shift a bit in, LSB first. Returns true when a whole byte is in mByte.
+    private static boolean receiveByte(Device device, boolean bit) {
+        if (bit) {
+            device.mByte |= 1 << (device.mBit & 7);
+        }
+        return (++device.mBit & 7) == 0;
+    }
+
+    private void romCommand(Device device, int command) {
+        device.mBit = 0;
+        if (command == (OneWire.OW_MATCH_ROM & 0xff)) {
+            device.mState = STATE_MATCH_ROM;
+        } else if (command == (OneWire.OW_SKIP_ROM & 0xff)) {
+            device.mState = STATE_FUNCTION;
+        } else if (command == (OneWire.OW_SEARCH_ROM & 0xff)
+                || (command == (OneWire.OW_ALARM_SEARCH & 0xff) && device.isAlarming())) {
+            device.mState = STATE_SEARCH;
+        } else if (command == READ_ROM) {
+            device.mState = STATE_READ_ROM;
+        } else {
+            device.mState = STATE_IDLE;
+        }
+    }
+
+    private void functionCommand(Device device, int command, long now) {
+        device.mBit = 0;
+        device.mState = STATE_IDLE;
+        switch (command) {
+            case Ds18b20.DS18X20_CONVERT_T:
+                int shift = Ds18b20.RESOLUTION_12_BIT - device.getResolution();
+                // Undefined low bits read as 0.
+                device.mConvertedTemperature = device.mTemperature & ~((1 << shift) - 1);
+                device.mConversionDoneNanos = now + (mConversionNanos >> shift);
+                device.mConverting = true;
+                device.mConversions++;
+                device.update(now);
+                device.mState = STATE_CONVERTING;
+                break;
+            case Ds18b20.DS18X20_READ:
+                device.update(now);
+                device.mReads++;
+                device.mState = STATE_READ_SCRATCHPAD;
+                break;
+            case Ds18b20.DS18X20_WRITE:
+                device.mState = STATE_WRITE_SCRATCHPAD;
+                break;
+            case Ds18b20.DS18X20_COPY:
+                if (!device.mCopyFails) {
+                    System.arraycopy(device.mScratchpad, Ds18b20.SCRATCHPAD_TH, device.mEeprom, 0,
+                            device.mEeprom.length);
+                }
+                break;
+            case Ds18b20.DS18X20_RECALL:
+                System.arraycopy(device.mEeprom, 0, device.mScratchpad, Ds18b20.SCRATCHPAD_TH,
+                        device.mEeprom.length);
+                device.updateCrc();
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public synchronized void setBaudrate(int rate) {
+        mBaudrate = rate;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getName() {
+        return "UART0";
+    }
+
+    @Override
+    public void setParity(int mode) {
+    }
+
+    @Override
+    public void setDataSize(int size) {
+    }
+
+    @Override
+    public void setStopBits(int bits) {
+    }
+
+    @Override
+    public void setHardwareFlowControl(int mode) {
+    }
+
+    @Override
+    public void setModemControl(int lines) {
+    }
+
+    @Override
+    public void clearModemControl(int lines) {
+    }
+
+    public int getModemControl() {
+        return 0;
+    }
+
+    @Override
+    public void sendBreak(int duration) {
+    }
+
+    @Override
+    public synchronized void flush(int direction) {
+        mHead = mTail;
+    }
+
+    @Override
+    public synchronized void registerUartDeviceCallback(UartDeviceCallback callback) {
+        mCallback = callback;
+    }
+
+    // Callbacks are delivered on the writing thread, right after the echoes are queued.
+    @Override
+    public synchronized void registerUartDeviceCallback(Handler handler,
+            UartDeviceCallback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public synchronized void unregisterUartDeviceCallback(UartDeviceCallback callback) {
+        if (mCallback == callback) {
+            mCallback = null;
+        }
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimulatedOneWireBusTest {
+
+    private static final int SENSORS = 16;
+
+    @Rule
+    public ExpectedException mExpectedException = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void searchRoms_enumeratesAllDevices() throws IOException {
+        SimulatedOneWireBus bus = newBus(SENSORS);
+        bus.addDevice(0x1000000000000000L | 0x1234560000L);
+        long[] found = new OneWire(bus).searchRoms(Ds18b20.FAMILY_CODE);
+        assertArrayEquals(sensorIds(bus), sorted(found));
+    }
+
+    @Test
+    public void searchNext_burstsReadSlots() throws IOException {
+        SimulatedOneWireBus bus = newBus(SENSORS);
+        OneWire oneWire = new OneWire(bus);
+        long writes = bus.getWrites();
+        long slots = bus.getSlots();
+        assertTrue(oneWire.searchNext(new RomSearch()) != 0);
+        // Reset, SEARCH_ROM, then per ROM bit the two read slots and the direction.
+        assertEquals(1 + 1 + 64 * 2, bus.getWrites() - writes);
+        assertEquals(8 + 64 * 3, bus.getSlots() - slots);
+    }
+
+    @Test
+    public void findAll_probesCachedIdsInsteadOfSearching() throws IOException {
+        SimulatedOneWireBus bus = newBus(SENSORS);
+        OneWire oneWire = new OneWire(bus);
+        RomIdCache cache = new RomIdCache(mFolder.getRoot());
+        long[] found = Ds18b20.findAll(oneWire, "UART0", cache);
+        assertArrayEquals(sensorIds(bus), sorted(found));
+        assertArrayEquals(found, cache.load("UART0"));
+
+        long resets = bus.getResets();
+        assertArrayEquals(found, Ds18b20.findAll(oneWire, "UART0", cache));
+        // One MATCH_ROM scratchpad read per sensor, and no search passes.
+        assertEquals(SENSORS, bus.getResets() - resets);
+    }
+
+    @Test
+    public void findAll_searchesWhenCachedSensorIsGone() throws IOException {
+        SimulatedOneWireBus bus = newBus(SENSORS);
+        OneWire oneWire = new OneWire(bus);
+        RomIdCache cache = new RomIdCache(mFolder.getRoot());
+        Ds18b20.findAll(oneWire, "UART0", cache);
+        bus.removeDevice(bus.getDevices().get(3));
+
+        long[] again = Ds18b20.findAll(oneWire, "UART0", cache);
+        assertEquals(SENSORS - 1, again.length);
+        assertArrayEquals(sensorIds(bus), sorted(again));
+        assertArrayEquals(again, cache.load("UART0"));
+    }
+
+    @Test
+    public void ds18b20_skipsDevicesOfOtherFamilies() throws IOException {
+        final SimulatedOneWireBus bus = newBus(1);
+        // A DS18S20 comes first in search order, its family code having a 0 where 0x28 has a 1.
+        bus.addDevice(0x1000000000000000L | 0x1234560000L);
+        final OneWireRegistry registry = new OneWireRegistry(new OneWireRegistry.Opener() {
+            @Override
+            public OneWire open(String uart) throws IOException {
+                return new OneWire(bus);
+            }
+        }, 0);
+        assertEquals(0x10, new OneWire(bus).searchNext(new RomSearch()) >>> 56);
+        Ds18b20 ds18b20 = new Ds18b20(registry, "UART0");
+        assertEquals(bus.getDevices().get(0).getId(), ds18b20.getOneWireId());
+        ds18b20.close();
+    }
+
+    @Test
+    public void ds18b20_searchesWaitForTransactionInFlight() throws Exception {
+        final SimulatedOneWireBus bus = newBus(1);
+        final OneWireRegistry registry = new OneWireRegistry(new OneWireRegistry.Opener() {
+            @Override
+            public OneWire open(String uart) throws IOException {
+                return new OneWire(bus);
+            }
+        }, 0);
+        Ds18b20 reader = new Ds18b20(registry, "UART0", bus.getDevices().get(0).getId());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        Future<Long> inFlight = registry.getExecutor(reader.mOneWire).submit(
+                new OneWireBusExecutor.Transaction<Long>() {
+                    @Override
+                    public Long run(OneWire oneWire) throws IOException {
+                        started.countDown();
+                        try {
+                            finish.await();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                        return bus.getResets();
+                    }
+                });
+        started.await();
+
+        long resets = bus.getResets();
+        final Ds18b20[] searcher = new Ds18b20[1];
+        final IOException[] error = new IOException[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    searcher[0] = new Ds18b20(registry, "UART0");
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        thread.start();
+        // The search queues behind the transaction instead of sharing the bus with it.
+        while (thread.getState() != Thread.State.WAITING && thread.isAlive()) {
+            Thread.yield();
+        }
+        assertEquals(resets, bus.getResets());
+        finish.countDown();
+        thread.join();
+
+        assertEquals(resets, (long) inFlight.get());
+        assertNull(error[0]);
+        assertEquals(reader.getOneWireId(), searcher[0].getOneWireId());
+        searcher[0].close();
+        reader.close();
+        assertFalse(registry.isOpen("UART0"));
+    }
+
+    @Test
+    public void ds18b20Bus_readsDoNotOverlapExecutorTransactions() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        // Writes of other threads while a transaction holds the bus.
+        final AtomicReference<Thread> owner = new AtomicReference<>();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final SimulatedOneWireBus bus = new SimulatedOneWireBus() {
+            @Override
+            public int write(byte[] buffer, int length) {
+                Thread thread = owner.get();
+                if (thread != null && thread != Thread.currentThread()) {
+                    overlaps.incrementAndGet();
+                }
+                return super.write(buffer, length);
+            }
+        };
+        bus.addDevice(((long) Ds18b20.FAMILY_CODE << 56) | 0x1234500L).setTemperature(21);
+        bus.addDevice(((long) Ds18b20.FAMILY_CODE << 56) | 0x6789a00L).setTemperature(22);
+        bus.setClock(clock);
+        bus.setConversionTimeMillis(10);
+        final OneWireRegistry registry = new OneWireRegistry(new OneWireRegistry.Opener() {
+            @Override
+            public OneWire open(String uart) throws IOException {
+                return new OneWire(bus);
+            }
+        }, 0);
+        final Ds18b20Bus sampler = new Ds18b20Bus(registry, "UART0", sensorIds(bus));
+        sampler.mOneWire.setClock(clock);
+
+        final float[][] readings = new float[50][];
+        final IOException[] error = new IOException[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < readings.length; ++i) {
+                        readings[i] = sampler.readTemperatures();
+                    }
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        reader.start();
+        OneWireBusExecutor executor = registry.getExecutor(sampler.mOneWire);
+        while (reader.isAlive()) {
+            executor.runAndWait(new OneWireBusExecutor.Transaction<Void>() {
+                @Override
+                public Void run(OneWire oneWire) throws IOException {
+                    owner.set(Thread.currentThread());
+                    try {
+                        for (int i = 0; i < 10; ++i) {
+                            assertTrue(oneWire.resetPresence());
+                        }
+                    } finally {
+                        owner.set(null);
+                    }
+                    return null;
+                }
+            });
+        }
+        reader.join();
+
+        assertNull(error[0]);
+        assertEquals(0, overlaps.get());
+        for (float[] temperatures : readings) {
+            assertEquals(2, temperatures.length);
+            assertEquals(43, temperatures[0] + temperatures[1], 0);
+        }
+        sampler.close();
+        assertFalse(registry.isOpen("UART0"));
+    }
+
+    @Test
+    public void resetPresence_detectsUnpluggedSensors() throws IOException {
+        SimulatedOneWireBus bus = newBus(1);
+        OneWire oneWire = new OneWire(bus);
+        assertTrue(oneWire.resetPresence());
+        bus.removeDevice(bus.getDevices().get(0));
+        assertFalse(oneWire.resetPresence());
+        assertEquals(1, oneWire.getStats().getCounter(OneWireStats.COUNTER_PRESENCE_FAILURES));
+    }
+
+    @Test
+    public void oneWireFrame_replaysPreEncodedSlots() throws IOException {
+        SimulatedOneWireBus bus = newBus(2);
+        long id = bus.getDevices().get(1).getId();
+        OneWire oneWire = new OneWire(bus);
+        CommandFrame frame = oneWire.oneWireFrame(Ds18b20.DS18X20_READ, id,
+                Ds18b20.SCRATCHPAD_SIZE);
+        assertEquals(1 + OneWire.OW_ID_SIZE + 1, frame.mWriteCount);
+        assertEquals(OneWire.OW_MATCH_ROM, frame.mBytes[0]);
+        assertEquals((byte) (id >>> 56), frame.mBytes[1]);
+        assertEquals((byte) 0xff, frame.mBytes[frame.mBytes.length - 1]);
+        assertArrayEquals(UartBusMaster.encodeSlots(frame.mBytes), frame.mSlots);
+
+        byte[] expected = new byte[Ds18b20.SCRATCHPAD_SIZE];
+        assertTrue(oneWire.oneWireCheckedTransaction(Ds18b20.DS18X20_READ, id, expected, 0,
+                Ds18b20.SCRATCHPAD_SIZE, 0));
+        long writes = bus.getWrites();
+        byte[] scratchpad = new byte[Ds18b20.SCRATCHPAD_SIZE + 1];
+        assertTrue(oneWire.oneWireCheckedTransaction(frame, scratchpad, 1, 0));
+        assertArrayEquals(expected, Arrays.copyOfRange(scratchpad, 1, scratchpad.length));
+        // The reset, then the whole frame in one write.
+        assertEquals(2, bus.getWrites() - writes);
+    }
+
+    @Test
+    public void readTemperatures_convertsAllSensorsAtOnce() throws IOException {
+        VirtualClock clock = new VirtualClock();
+        SimulatedOneWireBus bus = newBus(SENSORS);
+        bus.setClock(clock);
+        bus.setConversionTimeMillis(50);
+        Ds18b20Bus sampler = new Ds18b20Bus(bus, sensorIds(bus));
+        sampler.mOneWire.setClock(clock);
+        float[] temperatures = sampler.readTemperatures();
+
+        List<SimulatedOneWireBus.Device> devices = bus.getDevices();
+        for (int i = 0; i < SENSORS; ++i) {
+            assertEquals(temperatureOf(i), temperatures[indexOf(sampler, devices.get(i))], 0);
+            assertEquals(1, devices.get(i).getConversions());
+            assertEquals(1, devices.get(i).getReads());
+        }
+        // A single conversion wait for all sensors, polled every 750 / 16 ms.
+        assertEquals(expectedWaitMillis(50, Ds18b20.RESOLUTION_12_BIT), clock.getSleptMillis());
+    }
+
+    @Test
+    public void readRawTemperatures_busTime() throws IOException {
+        SimulatedOneWireBus bus = newBus(SENSORS);
+        Ds18b20Bus sampler = new Ds18b20Bus(bus, sensorIds(bus));
+        int[] raws = new int[SENSORS];
+        assertEquals(SENSORS, sampler.readRawTemperatures(raws));
+
+        // SKIP_ROM and CONVERT_T, one conversion poll, then MATCH_ROM, ID, READ and the
+        // scratchpad per sensor.
+        assertEquals(1 + SENSORS, bus.getResets());
+        assertEquals(2 * 8 + 1 + SENSORS * (10 + Ds18b20.SCRATCHPAD_SIZE) * 8, bus.getSlots());
+        assertEquals(bus.getResets() * SimulatedOneWireBus.RESET_NANOS
+                + bus.getSlots() * SimulatedOneWireBus.SLOT_NANOS, bus.getBusTimeNanos());
+    }
+
+    @Test
+    public void readAlarmTemperatures_readsAlarmingSensorsOnly() throws IOException {
+        SimulatedOneWireBus bus = newBus(SENSORS);
+        long[] ids = sensorIds(bus);
+        Ds18b20Bus sampler = new Ds18b20Bus(bus, ids);
+        // Sensors read 20 to 35 degrees: those at 30 and above alarm.
+        for (long id : ids) {
+            sampler.setAlarmThresholds(id, -10, 30);
+        }
+        long[] alarming = new long[SENSORS];
+        float[] temperatures = new float[SENSORS];
+        int count = sampler.readAlarmTemperatures(alarming, temperatures);
+
+        assertEquals(6, count);
+        for (int i = 0; i < count; ++i) {
+            assertTrue(temperatures[i] >= 30);
+        }
+    }
+
+    @Test
+    public void readTemperature_retriesCorruptedScratchpad() throws IOException {
+        SimulatedOneWireBus bus = newBus(1);
+        SimulatedOneWireBus.Device device = bus.getDevices().get(0);
+        device.corruptReads(Ds18b20.READ_RETRIES);
+        Ds18b20 ds18b20 = new Ds18b20(bus, device.getId());
+        assertEquals(temperatureOf(0), ds18b20.readTemperature(), 0);
+        assertEquals(Ds18b20.READ_RETRIES + 1, device.getReads());
+        assertEquals(Ds18b20.READ_RETRIES,
+                ds18b20.getStats().getCounter(OneWireStats.COUNTER_CRC_FAILURES));
+    }
+
+    @Test
+    public void readRawTemperatures_survivesNoise() throws IOException {
+        SimulatedOneWireBus bus = newBus(SENSORS);
+        bus.setNoise(0.001, 1);
+        Ds18b20Bus sampler = new Ds18b20Bus(bus, sensorIds(bus));
+        for (int i = 0; i < SENSORS; ++i) {
+            sampler.getHealth(i).setBackoff(0, 0);
+        }
+        int[] raws = new int[SENSORS];
+        int valid = 0;
+        for (int cycle = 0; cycle < 20; ++cycle) {
+            valid += sampler.readRawTemperatures(raws);
+            for (int raw : raws) {
+                assertTrue(raw == Ds18b20.INVALID_RAW_TEMPERATURE
+                        || (raw >= 20 * 16 && raw < 36 * 16));
+            }
+        }
+        assertTrue(bus.getFlippedSlots() > 0);
+        assertTrue(sampler.getStats().getCounter(OneWireStats.COUNTER_RETRIES) > 0);
+        assertTrue("Valid " + valid, valid > 20 * SENSORS * 9 / 10);
+    }
+
+    @Test
+    public void setResolution_shortensConversion() throws IOException {
+        VirtualClock clock = new VirtualClock();
+        SimulatedOneWireBus bus = newBus(1);
+        bus.setClock(clock);
+        bus.setConversionTimeMillis(400);
+        SimulatedOneWireBus.Device device = bus.getDevices().get(0);
+        device.setTemperature(21.3125f);
+        Ds18b20 ds18b20 = new Ds18b20(bus, device.getId());
+        ds18b20.mOneWire.setClock(clock);
+        ds18b20.setResolution(Ds18b20.RESOLUTION_9_BIT);
+        assertEquals(Ds18b20.RESOLUTION_9_BIT, device.getResolution());
+
+        long slept = clock.getSleptMillis();
+        assertEquals(21.0f, ds18b20.readTemperature(), 0);
+        // A 9-bit conversion takes an eighth of the 12-bit one, polled every 94 / 16 ms.
+        assertEquals(expectedWaitMillis(400 / 8, Ds18b20.RESOLUTION_9_BIT),
+                clock.getSleptMillis() - slept);
+    }
+
+    @Test
+    public void setResolution_verifiesEepromCopy() throws IOException {
+        SimulatedOneWireBus bus = newBus(1);
+        SimulatedOneWireBus.Device device = bus.getDevices().get(0);
+        device.setCopyFails(true);
+        Ds18b20 ds18b20 = new Ds18b20(bus, device.getId());
+        try {
+            ds18b20.setResolution(Ds18b20.RESOLUTION_9_BIT);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Scratchpad write not verified", e.getMessage());
+        }
+        // The recall restored the resolution still stored in the EEPROM.
+        assertEquals(Ds18b20.RESOLUTION_12_BIT, device.getResolution());
+    }
+
+    @Test
+    public void readTemperature_waitsInVirtualTime() throws IOException {
+        VirtualClock clock = new VirtualClock();
+        SimulatedOneWireBus bus = newBus(1);
+        bus.setClock(clock);
+        bus.setConversionTimeMillis(600);
+        Ds18b20 ds18b20 = new Ds18b20(bus, bus.getDevices().get(0).getId());
+        ds18b20.mOneWire.setClock(clock);
+        assertEquals(temperatureOf(0), ds18b20.readTemperature(), 0);
+
+        // Polled every 750 / 16 ms until the conversion is done.
+        long expectedMillis = expectedWaitMillis(600, Ds18b20.RESOLUTION_12_BIT);
+        assertEquals(expectedMillis, clock.getSleptMillis());
+        OneWireStats.Snapshot stats = ds18b20.getStats().snapshot();
+        assertEquals(expectedMillis * 1000000L,
+                stats.getMeanNanos(OneWireStats.HISTOGRAM_CONVERSION));
+    }
+
+    @Test
+    public void readTemperature_timesOutInVirtualTime() throws IOException {
+        VirtualClock clock = new VirtualClock();
+        SimulatedOneWireBus bus = newBus(1);
+        bus.setClock(clock);
+        bus.setConversionTimeMillis(60 * 1000);
+        Ds18b20 ds18b20 = new Ds18b20(bus, bus.getDevices().get(0).getId());
+        ds18b20.mOneWire.setClock(clock);
+        mExpectedException.expect(IOException.class);
+        mExpectedException.expectMessage("Conversion timeout");
+        ds18b20.readTemperature();
+    }
+
+    @Test
+    public void readRawTemperatures_dayLongSoak() throws IOException, InterruptedException {
+        final long periodMillis = 60 * 1000;
+        final int cycles = (int) (24 * 60 * 60 * 1000 / periodMillis);
+        VirtualClock clock = new VirtualClock();
+        SimulatedOneWireBus bus = newBus(4);
+        bus.setClock(clock);
+        bus.setConversionTimeMillis(600);
+        Ds18b20Bus sampler = new Ds18b20Bus(bus, sensorIds(bus));
+        sampler.mOneWire.setClock(clock);
+
+        int[] raws = new int[4];
+        int valid = 0;
+        for (int cycle = 0; cycle < cycles; ++cycle) {
+            long start = clock.nanoTime();
+            valid += sampler.readRawTemperatures(raws);
+            clock.sleep(periodMillis - (clock.nanoTime() - start) / 1000000);
+        }
+
+        assertEquals(4 * cycles, valid);
+        assertEquals(24 * 60 * 60 * 1000L, clock.nanoTime() / 1000000);
+        for (SimulatedOneWireBus.Device device : bus.getDevices()) {
+            assertEquals(cycles, device.getConversions());
+        }
+        assertEquals(cycles, sampler.getStats().snapshot().getCount(
+                OneWireStats.HISTOGRAM_CONVERSION));
+    }
+
+    // Bus with DS18B20s reading 20, 21, ... degrees.
+    // Time a conversion of the given length is waited for, in whole polling periods.
+    private static long expectedWaitMillis(long conversionMillis, int resolution) {
+        long pollMillis = Math.max(1, Ds18b20.conversionTimeMillis(resolution) / 16);
+        return (conversionMillis + pollMillis - 1) / pollMillis * pollMillis;
+    }
+
+    static SimulatedOneWireBus newBus(int sensors) {
+        SimulatedOneWireBus bus = new SimulatedOneWireBus();
+        Random random = new Random(sensors);
+        for (int i = 0; i < sensors; ++i) {
+            long serial = random.nextLong() & 0x00ffffffffffff00L;
+            bus.addDevice(((long) Ds18b20.FAMILY_CODE << 56) | serial)
+                    .setTemperature(temperatureOf(i));
+        }
+        return bus;
+    }
+
+    private static float temperatureOf(int index) {
+        return 20 + index;
+    }
+
+    private static long[] sensorIds(SimulatedOneWireBus bus) {
+        List<SimulatedOneWireBus.Device> devices = bus.getDevices();
+        long[] ids = new long[devices.size()];
+        int count = 0;
+        for (SimulatedOneWireBus.Device device : devices) {
+            if ((device.getId() >>> 56) == Ds18b20.FAMILY_CODE) {
+                ids[count++] = device.getId();
+            }
+        }
+        return sorted(Arrays.copyOf(ids, count));
+    }
+
+    private static int indexOf(Ds18b20Bus sampler, SimulatedOneWireBus.Device device) {
+        long[] ids = sampler.getOneWireIds();
+        for (int i = 0; i < ids.length; ++i) {
+            if (ids[i] == device.getId()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long[] sorted(long[] ids) {
+        long[] copy = ids.clone();
+        Arrays.sort(copy);
+        return copy;
+    }
+}
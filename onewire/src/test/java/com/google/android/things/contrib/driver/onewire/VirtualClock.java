@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.driver.onewire;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clock whose time only moves when it is slept on or advanced, so that waits take no real time
+ * and their durations are exact.
+ */
+class VirtualClock implements OneWireClock {
+    private final AtomicLong mNanos = new AtomicLong();
+    private final AtomicLong mSleptNanos = new AtomicLong();
+
+    @Override
+    public long nanoTime() {
+        return mNanos.get();
+    }
+
+    @Override
+    public void sleep(long millis) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        mSleptNanos.addAndGet(millis * 1000000L);
+        mNanos.addAndGet(millis * 1000000L);
+    }
+
+    /**
+     * Move the time forward without counting it as slept.
+     */
+    void advance(long millis) {
+        mNanos.addAndGet(millis * 1000000L);
+    }
+
+    /**
+     * Returns the total time spent in {@link #sleep(long)}.
+     */
+    long getSleptMillis() {
+        return mSleptNanos.get() / 1000000L;
+    }
+}